@@ -0,0 +1,68 @@
+package cs451;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Transport that sends nothing, so that the layers above it can be measured without any I/O. It is its own factory, 
+ * for a single process. Messages are released as soon as they are sent, and ackAll acks them on behalf of their 
+ * destinations, which keeps the congestion windows open. 
+ */
+public class DiscardingTransport implements Transport, Transport.Factory {
+	
+	private PerfectLinks pl;
+	// Per destination, the highest message id sent to it. 
+	private AtomicIntegerArray highest;
+	
+	@Override
+	public Transport create(Host host, List<Host> hosts, PerfectLinks pl) {
+		
+		this.pl = pl;
+		this.highest = new AtomicIntegerArray(hosts.size());
+		return this;
+	}
+	
+	@Override
+	public void start() {
+	}
+	
+	@Override
+	public void send(Message mess) {
+		
+		highest.accumulateAndGet(mess.getDestination() - 1, mess.getMsgId(), Math::max);
+		mess.release();
+	}
+	
+	/*
+	 * Acks every message sent so far, including the ones the acks themselves let out of the congestion windows. 
+	 */
+	public void ackAll() {
+		
+		for (int i = 0 ; i < highest.length() ; i++) {
+			int last;
+			do {
+				last = highest.get(i);
+				pl.deliverAck((byte)(i + 1), last, 0);
+			} while (highest.get(i) != last);
+		}
+	}
+	
+	@Override
+	public void closeSocket() {
+	}
+	
+	/*
+	 * Hosts of a benchmark with the given number of processes. They are never bound to. 
+	 */
+	public static List<Host> hosts(int numOfHosts) {
+		
+		List<Host> hosts = new ArrayList<Host>();
+		for (int id = 1 ; id <= numOfHosts ; id++) {
+			Host host = new Host();
+			host.populate(Integer.toString(id), "127.0.0.1", Integer.toString(11000 + id));
+			hosts.add(host);
+		}
+		return hosts;
+	}
+}
@@ -0,0 +1,126 @@
+package cs451;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Handling of the messages of lattice agreement by a process, for proposals of vs values out of ds distinct ones. 
+ * Each invocation handles one message from another process, cycling through a set of random proposals: 
+ * - parse: a nack for a proposal this process did not make, which is only parsed into a set of values and then ignored. 
+ * - deliverProposal: a proposal, parsed, merged into the accepted value, and answered with an ack or a nack. 
+ * - merge: the containsAll/addAll merge of deliverProposal alone, on the same sets. 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatticeAgreementBenchmark {
+	
+	// Number of random proposals cycled through. 
+	private static final int NUM_OF_PROPOSALS = 1024;
+	private static final int PROCESSES = 3;
+	
+	// Maximum number of values in a proposal. 
+	@Param({"16", "256"})
+	public int vs;
+	
+	// Number of distinct values over all proposals. 
+	@Param({"64", "1024"})
+	public int ds;
+	
+	private DiscardingTransport transport;
+	private LatticeAgreement la;
+	private ByteBuffer[] proposals;
+	private ByteBuffer[] nacks;
+	private HashSet<Integer>[] values;
+	private HashSet<Integer> accepted;
+	private int next;
+	
+	@Setup
+	public void setup() {
+		
+		Random random = new Random(1);
+		proposals = new ByteBuffer[NUM_OF_PROPOSALS];
+		nacks = new ByteBuffer[NUM_OF_PROPOSALS];
+		values = new HashSet[NUM_OF_PROPOSALS];
+		for (int i = 0 ; i < NUM_OF_PROPOSALS ; i++) {
+			values[i] = new HashSet<Integer>();
+			int size = 1 + random.nextInt(Math.min(vs, ds));
+			while (values[i].size() < size) {
+				values[i].add(1 + random.nextInt(ds));
+			}
+			// Encoded as LatticeAgreement does: step, proposal number, then the values. 
+			proposals[i] = encode(0, i + 1, values[i]);
+			// No proposal of this process has number -1, so the nack is ignored once parsed. 
+			nacks[i] = encode(0, -1, values[i]);
+		}
+		
+		transport = new DiscardingTransport();
+		HashSet<Integer>[] own = new HashSet[] { new HashSet<Integer>() };
+		la = new LatticeAgreement(own, DiscardingTransport.hosts(PROCESSES), 1, new BufferedWriter(Writer.nullWriter()), transport);
+		accepted = new HashSet<Integer>();
+		next = 0;
+	}
+	
+	@TearDown
+	public void tearDown() {
+		la.stopProposing();
+	}
+	
+	private static ByteBuffer encode(int step, int proposalNum, HashSet<Integer> value) {
+		
+		ByteBuffer buffer = ByteBuffer.allocate((value.size() + 2) * 4);
+		buffer.putInt(step);
+		buffer.putInt(proposalNum);
+		value.forEach(x -> buffer.putInt(x.intValue()));
+		return buffer.flip();
+	}
+	
+	@Benchmark
+	public void parse() {
+		
+		la.deliver((byte)2, nacks[next], (byte)2);
+		next = (next + 1) % NUM_OF_PROPOSALS;
+	}
+	
+	@Benchmark
+	public void deliverProposal() {
+		
+		la.deliver((byte)0, proposals[next], (byte)2);
+		next = (next + 1) % NUM_OF_PROPOSALS;
+		// The ack or nack is acked right away, so that the congestion window never fills up. 
+		transport.ackAll();
+	}
+	
+	@Benchmark
+	public HashSet<Integer> merge() {
+		
+		HashSet<Integer> value = values[next];
+		next = (next + 1) % NUM_OF_PROPOSALS;
+		if (value.containsAll(accepted)) {
+			accepted = new HashSet<Integer>(value);
+		}else {
+			accepted.addAll(value);
+		}
+		return accepted;
+	}
+}
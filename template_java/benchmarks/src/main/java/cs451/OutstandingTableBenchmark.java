@@ -0,0 +1,153 @@
+package cs451;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Compares the outstanding message table of Perfect Links with the skip list it replaced, on the operations 
+ * the links do for every message: adding it when it is sent, looking it up when its deadline comes, and removing 
+ * it when it is acked, either by the watermark of the receiver or by its selective ack bitmap. 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutstandingTableBenchmark {
+	
+	// Number of messages in flight at once. 
+	@Param({"10000", "100000", "1000000"})
+	public int outstanding;
+	
+	private Message[] messages;
+	
+	@Setup
+	public void setup() {
+		
+		messages = new Message[outstanding];
+		for (int i = 0 ; i < outstanding ; i++) {
+			messages[i] = new Message(i + 1, (byte)1, (byte)0, (byte)2, null, false);
+		}
+	}
+	
+	/*
+	 * Every message is sent, then acked by watermarks advancing 64 ids at a time. 
+	 */
+	@Benchmark
+	public int skipListCumulative() {
+		
+		ConcurrentSkipListSet<Message> sent = new ConcurrentSkipListSet<Message>();
+		for (Message m : messages) {
+			sent.add(m);
+		}
+		int acked = 0;
+		for (int watermark = 64 ; watermark <= outstanding ; watermark += 64) {
+			NavigableSet<Message> head = sent.headSet(messages[watermark - 1], true);
+			while (head.pollFirst() != null) {
+				acked++;
+			}
+		}
+		return acked;
+	}
+	
+	@Benchmark
+	public int tableCumulative() {
+		
+		OutstandingTable sent = new OutstandingTable(1024);
+		for (Message m : messages) {
+			sent.add(m);
+		}
+		int acked = 0;
+		for (int watermark = 64 ; watermark <= outstanding ; watermark += 64) {
+			for (int id = sent.getBase() + 1 ; id <= watermark && sent.remove(id) != null ; id = sent.getBase() + 1) {
+				acked++;
+			}
+		}
+		return acked;
+	}
+	
+	/*
+	 * Every other message is acked through the selective ack bitmap before the watermark covers the rest. 
+	 */
+	@Benchmark
+	public int skipListSelective() {
+		
+		ConcurrentSkipListSet<Message> sent = new ConcurrentSkipListSet<Message>();
+		for (Message m : messages) {
+			sent.add(m);
+		}
+		int acked = 0;
+		for (int i = 1 ; i < outstanding ; i += 2) {
+			Message m = sent.ceiling(messages[i]);
+			if (m != null && m.getMsgId() == i + 1 && sent.remove(m)) {
+				acked++;
+			}
+		}
+		NavigableSet<Message> head = sent.headSet(messages[outstanding - 1], true);
+		while (head.pollFirst() != null) {
+			acked++;
+		}
+		return acked;
+	}
+	
+	@Benchmark
+	public int tableSelective() {
+		
+		OutstandingTable sent = new OutstandingTable(1024);
+		for (Message m : messages) {
+			sent.add(m);
+		}
+		int acked = 0;
+		for (int i = 1 ; i < outstanding ; i += 2) {
+			if (sent.remove(i + 1) != null) {
+				acked++;
+			}
+		}
+		for (int id = sent.getBase() + 1 ; id <= outstanding && sent.remove(id) != null ; id = sent.getBase() + 1) {
+			acked++;
+		}
+		return acked;
+	}
+	
+	/*
+	 * Every message is looked up, as the timer wheel does when its deadline comes. 
+	 */
+	@Benchmark
+	public void skipListScan(Blackhole bh) {
+		
+		ConcurrentSkipListSet<Message> sent = new ConcurrentSkipListSet<Message>();
+		for (Message m : messages) {
+			sent.add(m);
+		}
+		for (Message m : messages) {
+			bh.consume(sent.contains(m));
+		}
+	}
+	
+	@Benchmark
+	public void tableScan(Blackhole bh) {
+		
+		OutstandingTable sent = new OutstandingTable(1024);
+		for (Message m : messages) {
+			sent.add(m);
+		}
+		for (int id = 1 ; id <= outstanding ; id++) {
+			bh.consume(sent.get(id));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Bookkeeping Perfect Links does for every message it sends, without any I/O: taking it from the pool, assigning 
+ * its id in the congestion window, adding it to the outstanding table and the timer wheel, and removing it again 
+ * when it is acked. Messages are broadcast to all processes, as lattice agreement does. 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PerfectLinksBenchmark {
+	
+	// Number of messages broadcast before they are acked. 
+	@Param({"1", "64", "1024"})
+	public int batch;
+	
+	@Param({"3", "10"})
+	public int processes;
+	
+	private DiscardingTransport transport;
+	private PerfectLinks pl;
+	private ByteBuffer data;
+	
+	@Setup
+	public void setup() {
+		
+		transport = new DiscardingTransport();
+		// Messages to this process would be handed to lattice agreement by the receiver threads, so this process 
+		// is not one of the hosts, and all messages go through the transport. 
+		pl = new PerfectLinks(DiscardingTransport.hosts(processes), processes + 1, null, transport);
+		data = ByteBuffer.allocate(4 * 16);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		pl.stopLinks();
+	}
+	
+	@Benchmark
+	public void broadcastAndAck() {
+		
+		for (int i = 0 ; i < batch ; i++) {
+			pl.broadcast((byte)0, data);
+		}
+		transport.ackAll();
+	}
+}
@@ -0,0 +1,104 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Encoding and decoding of a full datagram of lattice agreement messages with the wire format of UDP, half of 
+ * them with a piggybacked ack. The setup decodes what it encoded and checks every field, so the benchmark does 
+ * not run on a broken codec. 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+	
+	// Number of integers in the payload of each message, as in a proposal of that many values. 
+	@Param({"4", "64"})
+	public int values;
+	
+	// Message ids of the frames, around the first id that does not fit in a varint byte anymore. 
+	@Param({"100", "100000"})
+	public int firstMsgId;
+	
+	private ByteBuffer payload;
+	private ByteBuffer output;
+	private ByteBuffer encoded;
+	private WireFormat.Frame frame;
+	private int numOfFrames;
+	
+	@Setup
+	public void setup() {
+		
+		payload = ByteBuffer.allocate(values * 4);
+		for (int i = 0 ; i < values ; i++) {
+			payload.putInt(i * 7);
+		}
+		payload.flip();
+		output = ByteBuffer.allocate(65000);
+		frame = new WireFormat.Frame();
+		numOfFrames = (output.capacity() - 8) / WireFormat.maxFrameSize(payload.remaining());
+		
+		encode();
+		encoded = output.duplicate().flip();
+		
+		// Round trip check of every field. 
+		ByteBuffer input = encoded.duplicate();
+		if (WireFormat.getHeader(input) != 3) {
+			throw new IllegalStateException("Wrong source");
+		}
+		for (int i = 0 ; i < numOfFrames ; i++) {
+			WireFormat.getFrame(input, frame);
+			boolean hasAck = i % 2 == 0;
+			if (!frame.hasMessage() || frame.getMsgId() != firstMsgId + i || frame.getType() != i % 4
+					|| frame.hasAck() != hasAck || (hasAck && (frame.getWatermark() != firstMsgId + i - 10 || frame.getSack() != 0b1011L << i))
+					|| !input.duplicate().position(frame.getOffset()).limit(frame.getOffset() + frame.getLength()).equals(payload)) {
+				throw new IllegalStateException("Frame " + i + " does not match what was encoded");
+			}
+		}
+		if (input.hasRemaining()) {
+			throw new IllegalStateException("Trailing bytes");
+		}
+	}
+	
+	@Benchmark
+	public ByteBuffer encode() {
+		
+		output.clear();
+		WireFormat.putHeader(output, 3);
+		for (int i = 0 ; i < numOfFrames ; i++) {
+			boolean hasAck = i % 2 == 0;
+			WireFormat.putMessage(output, firstMsgId + i, i % 4, payload, hasAck, firstMsgId + i - 10, 0b1011L << i);
+		}
+		return output;
+	}
+	
+	@Benchmark
+	public void decode(Blackhole bh) {
+		
+		ByteBuffer input = encoded.duplicate();
+		bh.consume(WireFormat.getHeader(input));
+		while (input.hasRemaining()) {
+			WireFormat.getFrame(input, frame);
+			bh.consume(frame.getMsgId());
+			bh.consume(frame.getSack());
+			bh.consume(frame.getOffset());
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Pool of direct buffers the NIO transport receives datagrams into. Several datagrams are received one after 
+ * the other in the same buffer, and the messages they carry are handed up as slices of it. A buffer goes back 
+ * to the pool once the receiver moved on to another buffer and every message sliced from it has been released. 
+ */
+public class BufferPool {
+	
+	private int capacity;
+	private ConcurrentLinkedQueue<Buffer> free;
+	// Number of buffers allocated so far, each buffer being numbered in allocation order. 
+	private AtomicInteger numOfBuffers;
+	
+	public BufferPool(int capacity) {
+		
+		this.capacity = capacity;
+		this.free = new ConcurrentLinkedQueue<Buffer>();
+		this.numOfBuffers = new AtomicInteger();
+	}
+	
+	/*
+	 * Takes a cleared buffer from the pool, allocating a new one if none is free. The caller owns one reference to it. 
+	 */
+	public Buffer acquire() {
+		
+		Buffer buffer = free.poll();
+		if (buffer == null) {
+			buffer = new Buffer(ByteBuffer.allocateDirect(capacity), numOfBuffers.getAndIncrement());
+		}
+		buffer.references.set(1);
+		return buffer;
+	}
+	
+	/*
+	 * A pooled buffer, with the number of references held on it. 
+	 */
+	public class Buffer {
+		
+		private ByteBuffer buffer;
+		private AtomicInteger references;
+		private int index;
+		
+		private Buffer(ByteBuffer buffer, int index) {
+			
+			this.buffer = buffer;
+			this.references = new AtomicInteger();
+			this.index = index;
+		}
+		
+		public ByteBuffer getBuffer() {
+			return buffer;
+		}
+		
+		/*
+		 * Number of the buffer in its pool, between 0 and the number of buffers allocated by the pool. 
+		 */
+		public int getIndex() {
+			return index;
+		}
+		
+		public void retain() {
+			references.incrementAndGet();
+		}
+		
+		/*
+		 * Drops one reference, returning the buffer to the pool when it was the last one. 
+		 */
+		public void release() {
+			
+			if (references.decrementAndGet() == 0) {
+				buffer.clear();
+				free.add(this);
+			}
+		}
+	}
+}
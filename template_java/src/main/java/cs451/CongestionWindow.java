@@ -0,0 +1,127 @@
+package cs451;
+
+import java.util.ArrayDeque;
+
+/*
+ * AIMD congestion window of the link to one destination. At most cwnd messages can be unacked at a time, the 
+ * others wait in a backlog, from which they are transmitted as acks open the window. The window grows 
+ * by one message per acked message until the slow start threshold, and by one message per window after that, 
+ * and it is halved when a retransmission timeout fires. 
+ * 
+ * The capacity of the backlog bounds it for the senders that can wait for room. The others add their messages 
+ * past it, the backlog is then full and they are expected to hold back what they can send later. 
+ */
+public class CongestionWindow {
+	
+	private static final double INITIAL_WINDOW = 16;
+	private static final double MIN_WINDOW = 2;
+	private static final double MAX_WINDOW = 4096;
+	
+	private double cwnd;
+	private double ssthresh;
+	private int inFlight;
+	private long lastDecrease;
+	private ArrayDeque<Message> backlog;
+	private int capacity;
+	// Id of the last message added to the backlog. 
+	private int lastMsgId;
+	private boolean closed;
+	
+	public CongestionWindow(int capacity) {
+		
+		this.cwnd = INITIAL_WINDOW;
+		this.ssthresh = MAX_WINDOW;
+		this.inFlight = 0;
+		this.lastDecrease = 0;
+		this.backlog = new ArrayDeque<Message>();
+		this.capacity = capacity;
+		this.lastMsgId = 0;
+		this.closed = false;
+	}
+	
+	/*
+	 * Adds a message to the backlog and assigns it the next message id of the link, waiting for room while it is 
+	 * full. Returns false, and uses up no id, if the window is closed in the meantime. 
+	 */
+	public synchronized boolean put(Message mess) throws InterruptedException {
+		
+		while (backlog.size() >= capacity) {
+			if (closed) {
+				return false;
+			}
+			wait();
+		}
+		mess.setMsgId(++lastMsgId);
+		backlog.add(mess);
+		return true;
+	}
+	
+	/*
+	 * Same as put, but adds the message right away, past the capacity if the backlog is full. Returns whether it 
+	 * had room for it. 
+	 */
+	public synchronized boolean add(Message mess) {
+		
+		boolean room = backlog.size() < capacity;
+		mess.setMsgId(++lastMsgId);
+		backlog.add(mess);
+		return room;
+	}
+	
+	/*
+	 * Whether the backlog is at its capacity, or past it. 
+	 */
+	public synchronized boolean isFull() {
+		return backlog.size() >= capacity;
+	}
+	
+	/*
+	 * Takes the next message of the backlog if the window has room for it, counting it as in flight. 
+	 */
+	public synchronized Message poll() {
+		
+		if (inFlight >= (int) cwnd || backlog.isEmpty()) {
+			return null;
+		}
+		inFlight++;
+		notifyAll();
+		return backlog.poll();
+	}
+	
+	/*
+	 * Wakes up the senders waiting for room, for good, since the links are stopping. 
+	 */
+	public synchronized void close() {
+		
+		closed = true;
+		notifyAll();
+	}
+	
+	/*
+	 * Called when the given number of in flight messages have been acked. 
+	 */
+	public synchronized void onAck(int acked) {
+		
+		inFlight = Math.max(inFlight - acked, 0);
+		if (cwnd < ssthresh) {
+			cwnd += acked;
+		}else {
+			cwnd += acked / cwnd;
+		}
+		cwnd = Math.min(cwnd, MAX_WINDOW);
+	}
+	
+	/*
+	 * Called when a message to the destination timed out. The window is halved at most once per timeout period, 
+	 * since all messages sent in the same window tend to time out together. 
+	 */
+	public synchronized void onTimeout(long currentTime, long timeout) {
+		
+		if (currentTime - lastDecrease < timeout) {
+			return;
+		}
+		lastDecrease = currentTime;
+		ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+		cwnd = ssthresh;
+	}
+}
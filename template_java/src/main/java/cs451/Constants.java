@@ -17,4 +17,67 @@ public class Constants {
 
     // indexes for config
     public static final int CONFIG_VALUE = 6;
+
+    // maximum number of bytes the UDP sender packs into a single datagram,
+    // e.g. -Dcs451.batchSize=1472 to stay within an Ethernet MTU, 0 disables batching,
+    // capped at the size of the buffers datagrams are built in
+    public static final int BATCH_SIZE = Math.min(Integer.getInteger("cs451.batchSize", 65000), UDP.BUFFER_SIZE);
+
+    // how long an ack waits in milliseconds for an outgoing message to piggyback on before it is sent on its own
+    public static final int DELAYED_ACK_MS = Integer.getInteger("cs451.delayedAckMs", 5);
+
+    // granularity in milliseconds of the retransmission timer wheel
+    public static final int RETRANSMIT_TICK_MS = Integer.getInteger("cs451.retransmitTickMs", 10);
+
+    // maximum number of messages queued in the UDP sender before senders block
+    public static final int SEND_QUEUE_CAPACITY = Integer.getInteger("cs451.sendQueueCapacity", 65536);
+
+    // weights of the classes of messages queued in the UDP sender: in each round, up to this many messages of each class
+    // are taken in turn, acks, nacks and TLC messages first, then new proposals, then retransmissions
+    public static final int CONTROL_WEIGHT = Integer.getInteger("cs451.controlWeight", 8);
+    public static final int PROPOSAL_WEIGHT = Integer.getInteger("cs451.proposalWeight", 4);
+    public static final int RETRANSMISSION_WEIGHT = Integer.getInteger("cs451.retransmissionWeight", 1);
+
+    // number of messages per destination waiting for the congestion window from which blocking senders wait,
+    // and non-blocking ones keep adding to the backlog, with the destination reported as backlogged
+    public static final int SEND_BACKLOG = Integer.getInteger("cs451.sendBacklog", 65536);
+
+    // number of threads receiving datagrams, each with its own socket when the platform supports SO_REUSEPORT
+    public static final int RECEIVE_THREADS = Integer.getInteger("cs451.receiveThreads", 1);
+
+    // number of threads delivering received messages to the upper layer, messages of a source always go to the same one,
+    // 0 for one per process with virtual threads and a single one otherwise
+    public static final int DELIVERY_THREADS = Integer.getInteger("cs451.deliveryThreads", 0);
+
+    // run the threads of the protocol stack as virtual threads, only taken into account on Java 21 or later
+    public static final boolean VIRTUAL_THREADS = Boolean.getBoolean("cs451.virtualThreads");
+
+    // transport used by perfect links: "udp" for the DatagramSocket one, "nio" for the DatagramChannel one
+    public static final String TRANSPORT = System.getProperty("cs451.transport", "udp");
+    
+    // uniform reliable broadcast of the fifo milestone: "aggregate" for processes to exchange vectors of the messages they have
+    // and pull the ones they miss, "relay" for each of them to relay every message to all others
+    public static final String URB_MODE = System.getProperty("cs451.urbMode", "aggregate");
+
+    // minimum interval in milliseconds between two vectors a process sends, and time in milliseconds messages other processes
+    // have must be missing for before they are pulled from them
+    public static final int URB_SEEN_INTERVAL_MS = Integer.getInteger("cs451.urbSeenIntervalMs", 10);
+    public static final int URB_PULL_DELAY_MS = Integer.getInteger("cs451.urbPullDelayMs", 500);
+
+    // maximum number of its own messages a process has broadcast and not delivered yet before it waits for deliveries
+    public static final int URB_CREDITS = Integer.getInteger("cs451.urbCredits", 256);
+    
+    // interval in milliseconds at which the metrics of a process are appended to <output>.metrics, 0 to only expose them over JMX 
+    public static final int METRICS_INTERVAL_MS = Integer.getInteger("cs451.metricsIntervalMs", 1000);
+    
+    // in-memory network cs451.Simulation runs its processes on: seed of its random generator, probability that a datagram 
+    // is lost, base delay and mean of the exponential jitter in milliseconds, probability that a datagram is held back by 
+    // the reorder delay, and processes isolated from the others during a time window, e.g. "1,2@1000-4000" from 1s to 4s 
+    public static final long SIM_SEED = Long.getLong("cs451.sim.seed", 1);
+    public static final double SIM_LOSS = Double.parseDouble(System.getProperty("cs451.sim.loss", "0"));
+    public static final int SIM_DELAY_MS = Integer.getInteger("cs451.sim.delayMs", 1);
+    public static final double SIM_JITTER_MS = Double.parseDouble(System.getProperty("cs451.sim.jitterMs", "0"));
+    public static final double SIM_REORDER = Double.parseDouble(System.getProperty("cs451.sim.reorder", "0"));
+    public static final int SIM_REORDER_DELAY_MS = Integer.getInteger("cs451.sim.reorderDelayMs", 10);
+    public static final String SIM_PARTITION = System.getProperty("cs451.sim.partition", "");
 }
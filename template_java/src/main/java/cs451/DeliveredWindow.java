@@ -0,0 +1,101 @@
+package cs451;
+
+/*
+ * Tracks which message ids from one source have been delivered, with constant memory. All ids up to the 
+ * watermark have been delivered, and a circular bitset covers the ids of the window that follows it. The 
+ * window slides forward as soon as the id right after the watermark is delivered. Ids beyond the window 
+ * cannot be recorded yet and are rejected. 
+ * 
+ * Deliveries are recorded under the lock of the window, since several receive threads may read datagrams from 
+ * the same source. Other threads read the watermark and the bitset without it to build acks, a stale read only 
+ * makes the ack less complete. 
+ */
+public class DeliveredWindow {
+	
+	private long[] bits;
+	private int size;
+	private int mask;
+	private volatile int watermark;
+	
+	/*
+	 * The size of the window is rounded up to a power of two, of at least 64. 
+	 */
+	public DeliveredWindow(int size) {
+		
+		this.size = Math.max(Integer.highestOneBit(Math.max(size - 1, 1)) << 1, 64);
+		this.mask = this.size - 1;
+		this.bits = new long[this.size / 64];
+		this.watermark = 0;
+	}
+	
+	/*
+	 * All ids up to the returned one have been delivered. 
+	 */
+	public int getWatermark() {
+		return watermark;
+	}
+	
+	/*
+	 * Whether the id can be recorded, i.e. whether it is not further than one window after the watermark. 
+	 */
+	public boolean inWindow(int id) {
+		return id - watermark <= size;
+	}
+	
+	public boolean isDelivered(int id) {
+		
+		if (id <= watermark) {
+			return true;
+		}
+		if (!inWindow(id)) {
+			return false;
+		}
+		return (bits[index(id)] & bit(id)) != 0;
+	}
+	
+	/*
+	 * Records the id as delivered. Returns false if it already was, or if it is beyond the window. 
+	 */
+	public synchronized boolean add(int id) {
+		
+		if (id <= watermark || !inWindow(id)) {
+			return false;
+		}
+		if ((bits[index(id)] & bit(id)) != 0) {
+			return false;
+		}
+		bits[index(id)] |= bit(id);
+		
+		// Slide the window over the ids delivered contiguously after the watermark, freeing their bits. 
+		int next = watermark + 1;
+		while ((bits[index(next)] & bit(next)) != 0) {
+			bits[index(next)] &= ~bit(next);
+			next++;
+		}
+		watermark = next - 1;
+		return true;
+	}
+	
+	/*
+	 * Bitmap of the delivered ids among the 64 following the given watermark, bit i standing for id watermark + 1 + i. 
+	 */
+	public long selectiveAck(int watermark) {
+		
+		long sack = 0;
+		for (int i = 0 ; i < 64 ; i++) {
+			int id = watermark + 1 + i;
+			if (id > this.watermark && inWindow(id) && (bits[index(id)] & bit(id)) != 0) {
+				sack |= 1L << i;
+			}
+		}
+		return sack;
+	}
+	
+	private int index(int id) {
+		return (id & mask) >>> 6;
+	}
+	
+	private long bit(int id) {
+		return 1L << (id & 63);
+	}
+}
@@ -0,0 +1,16 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Layer on top of Perfect Links, lattice agreement or uniform reliable broadcast, to which the messages it 
+ * receives are delivered. 
+ */
+public interface Deliverer {
+	
+	/*
+	 * Delivers a message of the given type from the given process. The data is only valid until this returns, 
+	 * since the buffer holding it goes back to the pool then, so anything kept must be copied. 
+	 */
+	void deliver(byte type, ByteBuffer data, byte source);
+}
@@ -0,0 +1,237 @@
+package cs451;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * JDK Flight Recorder events of the protocol stack, so that a stalled step can be lined up with GC and thread 
+ * activity in a recording. They are disabled by default, and enabled with the settings in tools/cs451.jfc, e.g. 
+ * -XX:StartFlightRecording:settings=default,settings=tools/cs451.jfc,filename=recording.jfr 
+ * 
+ * Each event is emitted through a static method, which creates the event and only fills and commits it if it is 
+ * enabled. While disabled, the JIT compiles this down to a check of a constant, the event is never allocated. 
+ */
+public class Events {
+	
+	@Name("cs451.DatagramSent")
+	@Label("Datagram Sent")
+	@Category({"cs451", "Transport"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class DatagramSent extends Event {
+		
+		@Label("Peer")
+		int peer;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+	
+	@Name("cs451.DatagramReceived")
+	@Label("Datagram Received")
+	@Category({"cs451", "Transport"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class DatagramReceived extends Event {
+		
+		@Label("Peer")
+		int peer;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+	
+	@Name("cs451.Retransmit")
+	@Label("Retransmit")
+	@Category({"cs451", "Perfect Links"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class Retransmit extends Event {
+		
+		@Label("Peer")
+		int peer;
+		
+		@Label("Message Id")
+		int msgId;
+		
+		@Label("Retransmissions")
+		int numOfRetransmits;
+	}
+	
+	@Name("cs451.AckReceived")
+	@Label("Ack Received")
+	@Category({"cs451", "Perfect Links"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class AckReceived extends Event {
+		
+		@Label("Peer")
+		int peer;
+		
+		@Label("Watermark")
+		int watermark;
+		
+		@Label("Messages Acked")
+		int numOfAcked;
+	}
+	
+	@Name("cs451.Propose")
+	@Label("Propose")
+	@Category({"cs451", "Lattice Agreement"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class Propose extends Event {
+		
+		@Label("Step")
+		int step;
+		
+		@Label("Proposal Number")
+		int proposalNum;
+		
+		@Label("Values")
+		int numOfValues;
+	}
+	
+	@Name("cs451.ProposalAnswer")
+	@Label("Proposal Answer")
+	@Description("Ack or nack of a proposal of this process")
+	@Category({"cs451", "Lattice Agreement"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class ProposalAnswer extends Event {
+		
+		@Label("Peer")
+		int peer;
+		
+		@Label("Step")
+		int step;
+		
+		@Label("Proposal Number")
+		int proposalNum;
+		
+		@Label("Nack")
+		boolean nack;
+	}
+	
+	@Name("cs451.Decide")
+	@Label("Decide")
+	@Category({"cs451", "Lattice Agreement"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class Decide extends Event {
+		
+		@Label("Step")
+		int step;
+		
+		@Label("Values")
+		int numOfValues;
+	}
+	
+	@Name("cs451.StepAdvance")
+	@Label("Step Advance")
+	@Description("A quorum of TLC messages was reached for a step, and the next one starts")
+	@Category({"cs451", "Lattice Agreement"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class StepAdvance extends Event {
+		
+		@Label("Step")
+		int step;
+		
+		@Label("TLC Messages")
+		int numOfTLCs;
+	}
+	
+	public static void datagramSent(int peer, int size) {
+		
+		DatagramSent event = new DatagramSent();
+		if (event.isEnabled()) {
+			event.peer = peer;
+			event.size = size;
+			event.commit();
+		}
+	}
+	
+	public static void datagramReceived(int peer, int size) {
+		
+		DatagramReceived event = new DatagramReceived();
+		if (event.isEnabled()) {
+			event.peer = peer;
+			event.size = size;
+			event.commit();
+		}
+	}
+	
+	public static void retransmit(int peer, int msgId, int numOfRetransmits) {
+		
+		Retransmit event = new Retransmit();
+		if (event.isEnabled()) {
+			event.peer = peer;
+			event.msgId = msgId;
+			event.numOfRetransmits = numOfRetransmits;
+			event.commit();
+		}
+	}
+	
+	public static void ackReceived(int peer, int watermark, int numOfAcked) {
+		
+		AckReceived event = new AckReceived();
+		if (event.isEnabled()) {
+			event.peer = peer;
+			event.watermark = watermark;
+			event.numOfAcked = numOfAcked;
+			event.commit();
+		}
+	}
+	
+	public static void propose(int step, int proposalNum, int numOfValues) {
+		
+		Propose event = new Propose();
+		if (event.isEnabled()) {
+			event.step = step;
+			event.proposalNum = proposalNum;
+			event.numOfValues = numOfValues;
+			event.commit();
+		}
+	}
+	
+	public static void proposalAnswer(int peer, int step, int proposalNum, boolean nack) {
+		
+		ProposalAnswer event = new ProposalAnswer();
+		if (event.isEnabled()) {
+			event.peer = peer;
+			event.step = step;
+			event.proposalNum = proposalNum;
+			event.nack = nack;
+			event.commit();
+		}
+	}
+	
+	public static void decide(int step, int numOfValues) {
+		
+		Decide event = new Decide();
+		if (event.isEnabled()) {
+			event.step = step;
+			event.numOfValues = numOfValues;
+			event.commit();
+		}
+	}
+	
+	public static void stepAdvance(int step, int numOfTLCs) {
+		
+		StepAdvance event = new StepAdvance();
+		if (event.isEnabled()) {
+			event.step = step;
+			event.numOfTLCs = numOfTLCs;
+			event.commit();
+		}
+	}
+}
@@ -2,9 +2,8 @@ package cs451;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 /*
  * Class implementing the FIFO broadcast. 
@@ -12,10 +11,12 @@ import java.util.concurrent.ConcurrentSkipListSet;
 
 public class FifoBroadcast {
 
+	// Initial number of message ids after the next one to deliver of each source that can be held back. 
+	private static final int REORDER_CAPACITY = 1 << 12;
+	
 	public UniformReliableBroadcast urb;
-	private int[] next;
-	// Mapping of source id to message id
-	private HashMap<Byte, ConcurrentSkipListSet<Integer>> pending;
+	// Per source, the messages received ahead of the next one to deliver. 
+	private ReorderBuffer[] pending;
 	
 	private BufferedWriter bw;
 	
@@ -23,14 +24,9 @@ public class FifoBroadcast {
 		
 		this.bw = bw;
 		
-		next = new int[hosts.size()];
-		for (int i = 0 ; i < next.length ; i++) {
-			next[i] = 1;
-		}
-		
-		pending = new HashMap<Byte, ConcurrentSkipListSet<Integer>>();
-		for (byte i = 1 ; i <= hosts.size() ; i++) {
-			pending.put(i, new ConcurrentSkipListSet<Integer>());
+		pending = new ReorderBuffer[hosts.size()];
+		for (int i = 0 ; i < hosts.size() ; i++) {
+			pending[i] = new ReorderBuffer(REORDER_CAPACITY);
 		}
 	
 		
@@ -45,28 +41,31 @@ public class FifoBroadcast {
 	}
 	
 	/*
-	 * Delivery of a message at this level of communication. 
+	 * Delivery of a message at this level of communication. Uniform reliable broadcast delivers one message 
+	 * at a time. 
 	 */
-	public void deliver(int msgId, byte source, byte relay, byte[] data) {
+	public void deliver(int msgId, byte source, ByteBuffer data) {
 		
-		ConcurrentSkipListSet<Integer> pendingFromSource = pending.get(source);
-		pendingFromSource.add(msgId);
+		ReorderBuffer pendingFromSource = pending[source-1];
+		if (!pendingFromSource.add(msgId) || msgId != pendingFromSource.getNext()) {
+			return;
+		}
 		
-		if (next[source-1] == msgId) {
-			for(Integer nextMsgId : pendingFromSource) {
-				if (nextMsgId == next[source-1]) {
-					next[source-1]++;
-					try {
-						bw.write("d " + source + " " + nextMsgId + "\n");
-					}catch(IOException e) {
-						e.printStackTrace();
-					}	
-					pendingFromSource.remove(nextMsgId);
-				}
+		// The message fills the gap before the next ones, which are delivered with it. 
+		int released = pendingFromSource.release();
+		for (int nextMsgId = msgId ; nextMsgId < msgId + released ; nextMsgId++) {
+			try {
+				bw.write("d " + source + " " + nextMsgId + "\n");
+			}catch(IOException e) {
+				e.printStackTrace();
 			}
 		}
 	}
 	
+	public PerfectLinks getLinks() {
+		return urb.pl;
+	}
+	
 	public void stopBroadcast() {
 		urb.stopBroadcast();
 	}
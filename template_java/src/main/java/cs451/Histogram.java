@@ -0,0 +1,117 @@
+package cs451;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Lock-free histogram of non-negative values. Values are counted in buckets, 16 per power of two, so percentiles 
+ * are accurate to within 1/16 of their value. Values below 16 have a bucket each. Recording a value is a few 
+ * atomic increments, without allocation. 
+ */
+public class Histogram {
+	
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Enough buckets for the highest bit of any positive long. 
+	private static final int NUM_OF_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong max;
+	
+	public Histogram() {
+		
+		counts = new AtomicLongArray(NUM_OF_BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+	
+	/*
+	 * Records a value, negative ones counting as 0. 
+	 */
+	public void record(long value) {
+		
+		value = Math.max(value, 0);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+	
+	public long getCount() {
+		return count.sum();
+	}
+	
+	public long getMean() {
+		
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	/*
+	 * Smallest value at least the given percentage of the recorded values are lower than or equal to, up to the 
+	 * precision of the buckets, or 0 if nothing was recorded. 
+	 */
+	public long getPercentile(double percent) {
+		
+		long[] snapshot = new long[NUM_OF_BUCKETS];
+		long total = 0;
+		for (int i = 0 ; i < NUM_OF_BUCKETS ; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		
+		long rank = Math.max((long) Math.ceil(total * percent / 100), 1);
+		long seen = 0;
+		for (int i = 0 ; i < NUM_OF_BUCKETS ; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(lowerBound(i + 1) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	/*
+	 * Bucket of a value: the value itself below 16, otherwise its highest bit picks a group of 16 buckets, and the 
+	 * 4 bits after it the bucket in the group. 
+	 */
+	private static int index(long value) {
+		
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int highestBit = 63 - Long.numberOfLeadingZeros(value);
+		int shift = highestBit - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/*
+	 * Lowest value counted in the given bucket. 
+	 */
+	private static long lowerBound(int index) {
+		
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		if (index >= NUM_OF_BUCKETS) {
+			return Long.MAX_VALUE;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << shift;
+	}
+}
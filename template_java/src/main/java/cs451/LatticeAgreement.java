@@ -8,24 +8,36 @@ import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * Class implementing the Lattice Agreement. The implementation is done using Threshold Logical Clocks (TLC).
  * TLC messages are used to make sure each iteration of the algorithm is executed correctly, 
  * more precisely that no values from execution i-1 overflow into execution i.  
+ * 
+ * A process only decides a step from the acks of a majority to its own proposal, and moves on to the next step once 
+ * it decided and a majority of processes sent their TLC message for the step. The accepted value is kept per step, 
+ * so a process behind the others still gets answers to its proposals. 
+ * 
+ * Messages are sent without ever waiting for room in the window of a destination, most of them from the threads 
+ * Perfect Links delivers on, which a process that stopped acking would block forever otherwise. Messages to such 
+ * a process wait in its backlog until it acks again, so that it can still decide every step once it is back. 
  */
-public class LatticeAgreement {
+public class LatticeAgreement implements Deliverer {
 	
 	private volatile boolean active;
 	private volatile int ackCount;
 	private volatile int nackCount;
 	private volatile int activeProposalNum;
-	private volatile HashSet<Integer> proposedValue;
-	private volatile HashSet<Integer> acceptedValue;
+	// Guards the proposer state above along with the value. 
+	private final HashSet<Integer> proposedValue;
+	// Per step, the value accepted from the proposals of that step, which guards itself. It is kept after this 
+	// process moved on, the processes still at the step need the answers of a majority to decide it. 
+	private ConcurrentHashMap<Integer, HashSet<Integer>> acceptedValues;
 	
 	private int myId;
 	private List<Host> hosts;
@@ -33,25 +45,48 @@ public class LatticeAgreement {
 	private PerfectLinks pl;
 	private BufferedWriter bw;
 	
-	private volatile int msgId;
 	private volatile int currentProposal;
 	
+	// Only changes with the locks of the TLC messages and of the proposed value held. 
 	private volatile int currentStep;
+	// Guards the lists of TLC messages, the decisions and the output they are written to. 
 	private ConcurrentHashMap<Integer, LinkedList<TLC_Message>> storedTLCs;
+	// Per step, the decision of this process, sent again to the processes still proposing for the step. 
+	private int[][] decisionLog;
+	// Per process, the highest step it sent a proposal or TLC message for. A process at some step never needs 
+	// the TLC messages or the answers of the steps before it again. 
+	private int[] stepSeen;
+	// The accepted values and decisions of all steps before this one have been dropped. 
+	private volatile int stableStep;
 	
 	private Thread proposer;
 	private boolean stop = false;
 	private LinkedBlockingQueue<Integer> proposalQueue;
 
 	private boolean[] decided;
+	// Per step, the time it started at, in nanoseconds. 
+	private long[] startedAt;
+	// Number of times the current step was proposed, the first proposal and the ones following nacks. 
+	private AtomicInteger rounds;
+	
+	private LongAdder decisions;
+	private LongAdder acksReceived;
+	private LongAdder nacksReceived;
+	private Histogram decisionLatency;
+	private Histogram roundsPerStep;
 	
 	public LatticeAgreement(HashSet<Integer>[] proposals, List<Host> hosts, int myId, BufferedWriter bw) {
+		this(proposals, hosts, myId, bw, Transport.configured());
+	}
+	
+	/*
+	 * Same as above, with the transport of the Perfect Links layer created by the given factory. 
+	 */
+	public LatticeAgreement(HashSet<Integer>[] proposals, List<Host> hosts, int myId, BufferedWriter bw, Transport.Factory factory) {
 		
 		storedTLCs = new ConcurrentHashMap<Integer, LinkedList<TLC_Message>>();
 		proposalQueue = new LinkedBlockingQueue<Integer>();
 		
-		pl = new PerfectLinks(hosts, myId, proposals.length*hosts.size()*10, this);
-		
 		this.proposals = proposals;
 		this.bw = bw;
 		this.myId = myId;
@@ -62,34 +97,62 @@ public class LatticeAgreement {
 		nackCount = 0;
 		activeProposalNum = 0;
 		proposedValue = new HashSet<Integer>();
-		acceptedValue = new HashSet<Integer>();
+		acceptedValues = new ConcurrentHashMap<Integer, HashSet<Integer>>();
+		// The proposal of the first step is in the proposed value before Perfect Links can deliver anything. 
+		if (proposals.length > 0) {
+			proposedValue.addAll(proposals[0]);
+		}
 		
-		msgId = 0;
 		currentProposal = 0;
 		
 		currentStep = 0;
 		
 		decided = new boolean[proposals.length];
+		startedAt = new long[proposals.length];
+		rounds = new AtomicInteger();
+		
+		decisionLog = new int[proposals.length][];
+		stepSeen = new int[hosts.size()];
+		stableStep = 0;
+		
+		pl = new PerfectLinks(hosts, myId, this, factory);
+		
+		Metrics metrics = pl.getMetrics();
+		decisions = metrics.counter("la.decisions");
+		acksReceived = metrics.counter("la.acksReceived");
+		nacksReceived = metrics.counter("la.nacksReceived");
+		decisionLatency = metrics.histogram("la.decisionLatencyUs");
+		roundsPerStep = metrics.histogram("la.roundsPerStep");
+		// Share of the answers to the proposals of this process that were nacks, in thousandths. 
+		metrics.gauge("la.nackPermille", () -> {
+			long nacks = nacksReceived.sum();
+			long answers = acksReceived.sum() + nacks;
+			return answers == 0 ? 0 : nacks * 1000 / answers;
+		});
+		// Steps whose accepted value is still kept for the processes behind this one. 
+		metrics.gauge("la.retainedSteps", () -> acceptedValues.size());
 		
 		startProposeThread();
 	}
 
 	/*
-	 * Propose step in the algorithm. 
+	 * Propose step in the algorithm. The proposal of the step is already in the proposed value, it is added when 
+	 * the step starts. 
 	 */
 	public void propose(int index) {
 		
-		resetState();
-		System.gc();	
 		if (index >= proposals.length) {
 			return;
 		}
+		synchronized(storedTLCs) {
+			startedAt[index] = System.nanoTime();
+		}
 		proposalQueue.add(index);
 	}
 	
 	public void startProposeThread() {
 		
-		proposer = new Thread(() -> {
+		proposer = Threads.newThread("proposer", () -> {
 			
 			while(!stop) {
 				
@@ -101,17 +164,16 @@ public class LatticeAgreement {
 					}
 					
 //					proposedValue = proposals[index];
+					ByteBuffer data;
 					synchronized(proposedValue) {
-						proposedValue.addAll(proposals[index]);
-					}
-					active = true;
-					activeProposalNum++;
-					ackCount = 0;
-					nackCount = 0;
+						active = true;
+						activeProposalNum++;
+						ackCount = 0;
+						nackCount = 0;
 					
-					msgId++;
-					
-					broadcast(proposedValue, activeProposalNum, msgId);
+						data = encodeProposal();
+					}
+					pl.broadcastNonBlocking((byte)0, data);
 					
 				}catch(InterruptedException e) {
 					e.printStackTrace();
@@ -123,37 +185,39 @@ public class LatticeAgreement {
 	}
 	
 	/*
-	 * Broadcasts a message to all other processes by sending it to each other process, 
-	 * via the underlying Perfect Links layer. 
+	 * Encodes the proposed value as the active proposal of the current step, to be broadcast to all processes 
+	 * via the underlying Perfect Links layer. Called with the lock of the proposed value held. 
 	 */
-	private void broadcast(HashSet<Integer> value, int activeProposalNum, int msgId) {
+	private ByteBuffer encodeProposal() {
 		
-		synchronized(proposedValue) {
-			ByteBuffer buffer = ByteBuffer.allocate((value.size() + 2) * 4);
-			buffer.putInt(currentStep);
-			buffer.putInt(activeProposalNum);
-			value.forEach(x -> buffer.putInt(x.intValue()));
-			byte[] data = buffer.array();
+		ByteBuffer buffer = ByteBuffer.allocate((proposedValue.size() + 2) * 4);
+		buffer.putInt(currentStep);
+		buffer.putInt(activeProposalNum);
+		proposedValue.forEach(x -> buffer.putInt(x.intValue()));
 			
-			for(Host h : hosts) {
-				pl.send(msgId, (byte)myId, (byte)0, (byte)h.getId(), data);
-			}
-		}
+		rounds.incrementAndGet();
+		Events.propose(currentStep, activeProposalNum, proposedValue.size());
+		return buffer.flip();
 	}
 	
 	/*
-	 * Delivery of message at this (highest) level. 
+	 * Delivery of message at this (highest) level. Perfect Links delivers from several threads at once, so each 
+	 * message only locks the state it touches: the TLC messages, the proposed value, or the accepted value of its 
+	 * step. The first two are always locked in that order, and nothing is sent with any of them held. 
 	 */
-	public void deliver(byte type, byte[] data, byte source) {
+	@Override
+	public void deliver(byte type, ByteBuffer data, byte source) {
 		
-		ByteBuffer buffer = ByteBuffer.wrap(data);
+		ByteBuffer buffer = data.duplicate();
 		int step = buffer.getInt();
+		// Proposals and TLC messages carry the step of their sender, acks and nacks the one of the proposal. 
+		if (type == 0 || type == 3) {
+			advanceStep(source, step);
+		}
 		
-		// Check if this process is some step(s) behind the overall execution. 
-		if (step < currentStep) {
-			if (type == 0) {
-				sendTLC(source, step);
-			}
+		// Answers and TLC messages of the steps this process is done with are of no use anymore. Proposals of 
+		// those steps still get an answer, their sender is some step(s) behind. 
+		if (step < currentStep && type != 0) {
 			return;
 		}
 		
@@ -170,131 +234,229 @@ public class LatticeAgreement {
 		// We have a different behaviour based on which message has been delivered. 
 		switch(type) {
 		case 1:
-			deliverAck(proposalNum);
+			acksReceived.increment();
+			Events.proposalAnswer(source, step, proposalNum, false);
+			deliverAck(step, proposalNum);
 			break;
 		case 2:
-			deliverNack(value, proposalNum);
+			nacksReceived.increment();
+			Events.proposalAnswer(source, step, proposalNum, true);
+			deliverNack(step, value, proposalNum);
 			break;
 		case 3:
-			deliverTLC(data, source);
+			deliverTLC(step, value, source);
 			break;
 		default:
-			deliverProposal(value, proposalNum, source);
+			deliverProposal(step, value, proposalNum, source);
+		}
+	}
+	
+	/*
+	 * Records that the source reached the given step, and drops the accepted values and decisions of the steps every 
+	 * process is past. The step of a proposal or TLC message serves as the stability watermark of its sender. 
+	 * 
+	 * A process that stopped, crashed or not, holds the watermark back, and the steps after it are kept for as long, 
+	 * so that it still gets the answers of a majority to its proposals if it comes back, however long it was paused. 
+	 * What is kept is bounded by the number of proposals of the config. 
+	 */
+	private void advanceStep(byte source, int step) {
+		
+		synchronized(stepSeen) {
+			if (step <= stepSeen[source-1]) {
+				return;
+			}
+			stepSeen[source-1] = step;
+		
+			int stable = currentStep;
+			for (int i = 0 ; i < stepSeen.length ; i++) {
+				if (i != myId - 1) {
+					stable = Math.min(stable, stepSeen[i]);
+				}
+			}
+			
+			// The watermark moves first, so that no accepted value is created again for a step being dropped. 
+			int from = stableStep;
+			stableStep = Math.max(stable, from);
+			for (int i = from ; i < stable ; i++) {
+				acceptedValues.remove(i);
+			}
+			synchronized(storedTLCs) {
+				for (int i = from ; i < stable ; i++) {
+					decisionLog[i] = null;
+				}
+			}
 		}
 	}
 	
 	/*
 	 * Send a TLC message to a specific process. This is used when that process is behind and needs to catch up to 
-	 * other processes, which are steps in front of it. 
+	 * other processes, which are steps in front of it, in case it missed the message sent when this one decided. 
 	 */
 	private void sendTLC(byte destination, int step) {
 
-		Optional<TLC_Message> tlcMsg = storedTLCs.get(step).stream().filter(x -> x.getSource() == (byte)myId).findFirst();
-		if (tlcMsg.isEmpty()) {
-			return;
+		ByteBuffer data;
+		synchronized(storedTLCs) {
+			// The decision of the step was dropped once every process moved past it, the proposal is an old retransmission. 
+			int[] decision = decisionLog[step];
+			if (decision == null) {
+				return;
+			}
+			
+			ByteBuffer buffer = ByteBuffer.allocate((decision.length + 1)*4);
+			buffer.putInt(step);
+			for (int x : decision) {
+				buffer.putInt(x);
+			}
+			data = buffer.flip();
 		}
-		
-		HashSet<Integer> value = tlcMsg.get().getValue();
-		ByteBuffer buffer = ByteBuffer.allocate((value.size() + 1)*4); 
-		buffer.putInt(step);
-		value.forEach(x -> buffer.putInt(x.intValue()));
-		byte[] data = buffer.array();
-		msgId++;
-		pl.send(msgId, (byte)myId, (byte)3, destination, data);
+		pl.sendNonBlocking((byte)3, destination, data);
 	}
 	
 	/*
 	 * Delivery of a proposal from another process. 
 	 */
-	private void deliverProposal(HashSet<Integer> value, int proposalNum, byte source) {
+	private void deliverProposal(int step, HashSet<Integer> value, int proposalNum, byte source) {
 		
+		// Once the state of the step was dropped, the proposal is an old retransmission. 
+		HashSet<Integer> acceptedValue = acceptedValues.computeIfAbsent(step, x -> x < stableStep ? null : new HashSet<Integer>());
+		if (acceptedValue == null) {
+			return;
+		}
+		
+		byte type;
+		ByteBuffer data;
 		synchronized(acceptedValue) {
 			if (value.containsAll(acceptedValue)) {
-					acceptedValue = value;
-					msgId++;
-					byte[] data = ByteBuffer.allocate(8).putInt(currentStep).putInt(proposalNum).array();
-					// Send ACK back to source.
-					pl.send(msgId, (byte)myId, (byte)1, source, data);
+				// The value contains the accepted one, so it becomes the accepted value. 
+				acceptedValue.addAll(value);
+				type = 1;
+				data = ByteBuffer.allocate(8).putInt(step).putInt(proposalNum).flip();
 			}else {
-					acceptedValue.addAll(value);
-					ByteBuffer buffer = ByteBuffer.allocate((acceptedValue.size() + 2)*4);
-					buffer.putInt(currentStep);
-					buffer.putInt(proposalNum);
-					acceptedValue.forEach(x -> buffer.putInt(x.intValue()));
-					byte[] data = buffer.array();
-					msgId++;
-					// Send NACK back to source.
-					pl.send(msgId, (byte)myId, (byte)2, source, data);
+				acceptedValue.addAll(value);
+				ByteBuffer buffer = ByteBuffer.allocate((acceptedValue.size() + 2)*4);
+				buffer.putInt(step);
+				buffer.putInt(proposalNum);
+				acceptedValue.forEach(x -> buffer.putInt(x.intValue()));
+				type = 2;
+				data = buffer.flip();
 			}
 		}
+		// Send ACK or NACK back to source. 
+		pl.sendNonBlocking(type, source, data);
+		
+		if (step < currentStep) {
+			sendTLC(source, step);
+		}
 	}
 	
 	/*
 	 * Delivery of an ack from another process. 
 	 */
-	private void deliverAck(int proposalNum) {
-		
-		if (proposalNum == activeProposalNum) {
-			ackCount++;
-		}
+	private void deliverAck(int step, int proposalNum) {
 		
-		if (ackCount > hosts.size()/2 && active) {
-			synchronized(proposedValue) {
-				decide(proposedValue);
-			}
-			active = false;
+		synchronized(proposedValue) {
+			if (step == currentStep && proposalNum == activeProposalNum) {
+				ackCount++;
 			}
+		}
+		checkAnswers();
 	}
 	
 	/*
 	 * Delivery of a nack from another process. 
 	 */
-	private void deliverNack(HashSet<Integer> value, int proposalNum) {
+	private void deliverNack(int step, HashSet<Integer> value, int proposalNum) {
 		
-		if (proposalNum == activeProposalNum) {
-			synchronized(proposedValue) {
+		synchronized(proposedValue) {
+			if (step == currentStep && proposalNum == activeProposalNum) {
 				proposedValue.addAll(value);
 				nackCount++;
 			}
 		}
+		checkAnswers();
+	}
+	
+	/*
+	 * Decides once a majority acked the active proposal, or proposes again with the values of the nacks once a 
+	 * majority answered and some of them nacked. The answer completing the majority can be an ack as well as a nack. 
+	 */
+	private void checkAnswers() {
 		
-		if (nackCount > 0 && (ackCount+nackCount > hosts.size()/2) && active) {
-			activeProposalNum++;
-			ackCount = 0;
-			nackCount = 0;
-			
-			msgId++;
-			broadcast(proposedValue, activeProposalNum, msgId);
+		int step;
+		HashSet<Integer> decision = null;
+		ByteBuffer data = null;
+		synchronized(proposedValue) {
+			if (!active) {
+				return;
+			}
+			step = currentStep;
+			if (ackCount > hosts.size()/2) {
+				active = false;
+				decision = new HashSet<Integer>(proposedValue);
+			}else if (nackCount > 0 && (ackCount+nackCount > hosts.size()/2)) {
+				activeProposalNum++;
+				ackCount = 0;
+				nackCount = 0;
+				
+				data = encodeProposal();
+			}
+		}
+		
+		if (decision != null) {
+			synchronized(storedTLCs) {
+				decide(step, decision);
+			}
+			broadcastTLC(step, decision);
+		}else if (data != null) {
+			pl.broadcastNonBlocking((byte)0, data);
 		}
 	}
 	
 	/*
 	 * Delivery of a TLC message from another process. 
 	 */
-	private void deliverTLC(byte[] data, byte source) {
+	private void deliverTLC(int step, HashSet<Integer> value, byte source) {
 
-		ByteBuffer buffer = ByteBuffer.wrap(data);
-		int step = buffer.getInt();
-		HashSet<Integer> value = new HashSet<Integer>();
-		while(buffer.hasRemaining()) {
-			value.add(buffer.getInt());
+		// The TLC message of this process was stored when it decided. 
+		if (source == (byte)myId) {
+			return;
 		}
-		
-		if (!storedTLCs.containsKey(step)) {
-			storedTLCs.put(step, new LinkedList<TLC_Message>());
+		synchronized(storedTLCs) {
+			// The step was passed since the message was checked against it. 
+			if (step < currentStep) {
+				return;
+			}
+			storeTLC(new TLC_Message(source, step, value));
+			advance();
 		}
-		storedTLCs.get(step).add(new TLC_Message(source, step, value));
+	}
+	
+	/*
+	 * Adds the message to the ones of its step. Like advance and decide, called with the lock of the TLC messages held. 
+	 */
+	private void storeTLC(TLC_Message tlcMsg) {
 		
-		if (step > currentStep) {
-			return;
+		if (!storedTLCs.containsKey(tlcMsg.getStep())) {
+			storedTLCs.put(tlcMsg.getStep(), new LinkedList<TLC_Message>());
 		}
+		storedTLCs.get(tlcMsg.getStep()).add(tlcMsg);
+	}
 	
-		if (storedTLCs.get(step).size() > hosts.size()/2) {
-			if (!decided[step]) {
-				decide(allDecisions(step));
+	/*
+	 * Moves on to the next step once this process decided the current one, and a majority of processes, 
+	 * this one included, sent their TLC message for it. 
+	 */
+	private void advance() {
+		
+		int step = currentStep;
+		LinkedList<TLC_Message> tlcMsgs = storedTLCs.get(step);
+		if (step < proposals.length && decided[step] && tlcMsgs != null && tlcMsgs.size() > hosts.size()/2) {
+			Events.stepAdvance(step, tlcMsgs.size());
+			synchronized(proposedValue) {
+				currentStep++;
+				currentProposal++;
+				resetState(currentProposal);
 			}
-			currentStep++;
-			currentProposal++;
 			
 			// No need to keep all tlc messages after moving on to the next step, just the one that belongs to this node's decision. 
 //			for(TLC_Message tlcMsg : storedTLCs.get(step)) {
@@ -308,27 +470,18 @@ public class LatticeAgreement {
 //					break;
 //				}
 //			}
-			storedTLCs.get(step).removeIf(x -> x.getSource() != (byte)myId);
+			// The decision of this process is in the decision log, none of the TLC messages of the step are needed anymore. 
+			storedTLCs.remove(step);
 
 			propose(currentProposal);
 		}
 	}
 	
-	// Grab all decisions from TLC messages this node has for a certain step. Union of all decisions and the proposal of this node
-	// will not violate the properties of Lattice Agreement. 
-	private HashSet<Integer> allDecisions(int step) {
-		
-		HashSet<Integer> result = new HashSet<Integer>();
-		synchronized(proposedValue) {
-			result.addAll(proposedValue);
-		}
-		
-		storedTLCs.get(step).forEach(x -> result.addAll(x.getValue()));
-		
-		return result;
-	}
-	
-	public void decide(HashSet<Integer> decision) {
+	/*
+	 * Writes the decision of the step, the current one, and records its TLC message, which the caller broadcasts 
+	 * once the lock is released. A step is only decided once, the proposer is no longer active after its decision. 
+	 */
+	private void decide(int step, HashSet<Integer> decision) {
 
 		int i = 0;
 		int last = 0;
@@ -351,8 +504,14 @@ public class LatticeAgreement {
 			e.printStackTrace();
 		}
 		
-		decided[currentStep] = true;
-		broadcastTLC(currentStep, decision);
+		decisionLatency.record((System.nanoTime() - startedAt[step]) / 1000);
+		roundsPerStep.record(rounds.getAndSet(0));
+		decisions.increment();
+		Events.decide(step, decision.size());
+		decided[step] = true;
+		decisionLog[step] = decision.stream().mapToInt(Integer::intValue).toArray();
+		storeTLC(new TLC_Message((byte)myId, step, decision));
+		advance();
 	}
 	
 	/*
@@ -360,11 +519,10 @@ public class LatticeAgreement {
 	 */
 	private void broadcastTLC(int step, HashSet<Integer> value) {
 		
-		msgId++;
 		ByteBuffer buffer = ByteBuffer.allocate((value.size() + 1)*4);
 		buffer.putInt(step);
 		value.forEach(x -> buffer.putInt(x.intValue()));
-		byte[] data = buffer.array();
+		ByteBuffer data = buffer.flip();
 	
 //		if (!storedTLCs.containsKey(step)) {
 //			storedTLCs.put(step, new LinkedList<TLC_Message>());
@@ -374,25 +532,28 @@ public class LatticeAgreement {
 //		storedTLCs.get(step).add(tlcMsg);
 	
 		// Sending TLC message to every host. 
-		for(Host h : hosts) {
-//			if (h.getId() != myId) {
-			pl.send(msgId, (byte)myId, (byte)3, (byte)h.getId(), data);
-//			}
-		}
+		pl.broadcastNonBlocking((byte)3, data);
 	}
 	
-	private void resetState() {
+	/*
+	 * Clears the proposer state of the step that was decided, and starts the given one with its proposal as the 
+	 * proposed value, before the step is proposed. Called with the lock of the proposed value held. 
+	 */
+	private void resetState(int index) {
 		
-		synchronized(proposedValue) {
-			proposedValue.clear();
-		}
-		synchronized(acceptedValue) {
-			acceptedValue.clear();
+		proposedValue.clear();
+		if (index < proposals.length) {
+			proposedValue.addAll(proposals[index]);
 		}
+		active = false;
 		ackCount = 0;
 		nackCount = 0;
 	}
 	
+	public PerfectLinks getLinks() {
+		return pl;
+	}
+		
 	public void stopProposing() {
 		pl.stopLinks();
 	}
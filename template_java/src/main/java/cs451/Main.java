@@ -12,6 +12,7 @@ import java.io.PrintWriter;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 
@@ -21,16 +22,24 @@ public class Main {
 	private static FileWriter f;
 //	private static PerfectLinks pl;
 //	private static UniformReliableBroadcast urb;
-//	private static FifoBroadcast fb;	
+	// Only one of them is used, depending on the config. 
+	private static FifoBroadcast fb;
 	private static LatticeAgreement la;
+	// File the statistics of the run are written to, and the time the first proposal or broadcast was made at. 
+	private static String statsPath;
+	private static volatile long startTime;
 	
     private static void handleSignal() {
         //immediately stop network packet processing
         System.out.println("Immediately stopping network packet processing.");
+        long endTime = System.currentTimeMillis();
 //        pl.stopLinks();
 //        urb.stopBroadcast();
-//        fb.stopBroadcast();
-        la.stopProposing();
+        if (fb != null) {
+        	fb.stopBroadcast();
+        }else {
+        	la.stopProposing();
+        }
 
         //write/flush output file if necessary
         System.out.println("Writing output.");
@@ -40,6 +49,38 @@ public class Main {
         }catch(IOException e) {
         	e.printStackTrace();
         }
+        
+        writeStats(endTime);
+    }
+    
+    /*
+     * Writes the statistics of the run next to the output file, one key=value pair per line, as read by 
+     * tools/benchmark.py. Latencies are those of the steps, from their start to their decision, in microseconds, 
+     * as recorded by the la.decisionLatencyUs histogram. The fifo milestone only reports its duration and traffic, 
+     * its deliveries are counted from the output file. 
+     */
+    private static void writeStats(long endTime) {
+    	
+    	// Nothing to report before the first proposal or broadcast. 
+    	if (startTime == 0) {
+    		return;
+    	}
+    	PerfectLinks links = fb != null ? fb.getLinks() : la.getLinks();
+    	Map<String, Long> metrics = links.getMetrics().getValues();
+    	try (PrintWriter out = new PrintWriter(new FileWriter(statsPath))) {
+    		out.println("durationMs=" + (endTime - startTime));
+    		if (fb == null) {
+    			out.println("decisions=" + metrics.get("la.decisions"));
+    			out.println("latencyP50Us=" + metrics.get("la.decisionLatencyUs.p50"));
+    			out.println("latencyP90Us=" + metrics.get("la.decisionLatencyUs.p90"));
+    			out.println("latencyP99Us=" + metrics.get("la.decisionLatencyUs.p99"));
+    			out.println("latencyMaxUs=" + metrics.get("la.decisionLatencyUs.max"));
+    		}
+    		out.println("datagramsSent=" + metrics.get("udp.datagramsOut"));
+    		out.println("bytesSent=" + metrics.get("udp.bytesOut"));
+    	}catch(IOException e) {
+    		e.printStackTrace();
+    	}
     }
 
     private static void initSignalHandlers() {
@@ -51,6 +92,31 @@ public class Main {
         });
     }
 
+    /*
+     * Reads the proposals of a lattice agreement config file. 
+     */
+    static HashSet<Integer>[] readProposals(String config) throws IOException {
+    	
+    	// Information about the proposals (number of proposals, max number of elements per proposal and 
+    	// max number of distinct elements in the entire file ; respectively p, vs, ds). 
+    	BufferedReader br = new BufferedReader(new FileReader(config));
+    	String[] tokens = br.readLine().split(" ");
+    	int p = Integer.parseInt(tokens[0].trim());
+    	int vs = Integer.parseInt(tokens[1].trim());
+    	int ds = Integer.parseInt(tokens[2].trim());
+    	HashSet<Integer>[] proposals = new HashSet[p];
+    	for (int i = 0 ; i < p ; i++) {
+    		proposals[i] = new HashSet<Integer>();
+    		tokens = br.readLine().split(" ");
+    		for (String x : tokens) {
+    			proposals[i].add(Integer.parseInt(x.trim()));
+    		}
+    	}
+    	
+    	br.close();
+    	return proposals;
+    }
+    
     public static void main(String[] args) throws InterruptedException {
         Parser parser = new Parser(args);
         parser.parse();
@@ -84,17 +150,12 @@ public class Main {
         System.out.println("Doing some initialization\n");
         
         // Number of messages to send.
-//        int m = 0;
-        // Information about the proposals (number of proposals, max number of elements per proposal and
-        // max number of distinct elements in the entire file ; respectively p, vs, ds). 
-        int p = 0;
-        int vs = 0;
-        int ds = 0;
-        BufferedReader br;
+        int m = 0;
         
         // Initialization of the output buffer. 
         try {
         	File outputFile = new File(parser.output());
+        	statsPath = parser.output() + ".stats";
         	f = new FileWriter(outputFile);
         	buffer = new BufferedWriter(f);
         }catch(IOException e) {
@@ -104,32 +165,36 @@ public class Main {
         }
         
         HashSet<Integer>[] proposals = new HashSet[1];
-        // Reading the config file. 
+        // Reading the config file. The one of the fifo milestone only holds the number of messages to broadcast, 
+        // the one of lattice agreement starts with three numbers. 
+        boolean fifo = false;
         try {
-//        	m = Integer.parseInt(br.readLine());      // this was for perfect links and fifo
-        	br = new BufferedReader(new FileReader(parser.config()));
-        	String[] tokens = br.readLine().split(" ");
-        	p = Integer.parseInt(tokens[0].trim());
-        	vs = Integer.parseInt(tokens[1].trim());
-        	ds = Integer.parseInt(tokens[2].trim());
-        	proposals = new HashSet[p];
-        	for (int i = 0 ; i < p ; i++) {
-        		proposals[i] = new HashSet<Integer>();
-        		tokens = br.readLine().split(" ");
-        		for (String x : tokens) {
-        			proposals[i].add(Integer.parseInt(x.trim()));
-        		}
-        	}
-        	
+        	BufferedReader br = new BufferedReader(new FileReader(parser.config()));
+        	String[] tokens = br.readLine().trim().split(" ");
         	br.close();
+        	if (tokens.length == 1) {
+        		fifo = true;
+        		m = Integer.parseInt(tokens[0]);
+        	}else {
+        		proposals = readProposals(parser.config());
+        	}
         }catch(IOException e) {
         	e.printStackTrace();
         }
         
 //        pl = new PerfectLinks(parser.hosts(), parser.myId(), m, buffer);
 //        urb = new UniformReliableBroadcast(parser.hosts(), parser.myId(), m, buffer);
-//        fb = new FifoBroadcast(parser.hosts(), parser.myId(), m, buffer);
-        la = new LatticeAgreement(proposals, parser.hosts(), parser.myId(), buffer);
+        PerfectLinks links;
+        if (fifo) {
+        	fb = new FifoBroadcast(parser.hosts(), parser.myId(), m, buffer);
+        	links = fb.getLinks();
+        }else {
+        	la = new LatticeAgreement(proposals, parser.hosts(), parser.myId(), buffer);
+        	links = la.getLinks();
+        }
+        if (Constants.METRICS_INTERVAL_MS > 0) {
+        	links.getMetrics().startDumping(parser.output() + ".metrics", Constants.METRICS_INTERVAL_MS);
+        }
         
         System.out.println("Broadcasting and delivering messages...\n");
         
@@ -141,8 +206,12 @@ public class Main {
         
 //      pl.send(mess);
 //        urb.broadcast();
-//        fb.broadcast();
-        la.propose(0);
+        startTime = System.currentTimeMillis();
+        if (fifo) {
+        	fb.broadcast();
+        }else {
+        	la.propose(0);
+        }
 
         
         // After a process finishes broadcasting,
@@ -1,10 +1,16 @@
 package cs451;
 
-import java.io.Serializable;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class Message implements Serializable, Comparable<Message> {
+/*
+ * A message of the Perfect Links layer. Messages on the send and receive paths come from a MessagePool and are 
+ * reference counted: whoever holds a message (the outstanding table, the send queue of UDP, a receiver queue) 
+ * holds one reference to it, and the message goes back to the pool once the last one is released. A pooled 
+ * message must not be touched after its reference was released. 
+ */
+public class Message implements Comparable<Message> {
 
 	private int msgId;
 	private byte source;
@@ -12,13 +18,26 @@ public class Message implements Serializable, Comparable<Message> {
 	// Type of message : 0 == proposal, 1 == ACK, 2 == NACK, 3 == TLC 
 	private byte type;
 	private byte destination;
-	private byte[] data;
+	private ByteBuffer data;
 	private boolean ack;
+	// Pooled buffer the data is a slice of, if any. 
+	private BufferPool.Buffer owner;
 	
-	public int numOfRetransmits;
-	public long time;
+	// Per pooled buffer, the view of it that received payloads are read from, indexed by the number of the buffer. 
+	private ByteBuffer[] views;
+	// Buffer received payloads are copied to when they do not come from a pooled buffer. 
+	private ByteBuffer copy;
+	
+	private int numOfRetransmits;
+	// Time at which the message should be retransmitted. 
+	private long time;
+	// Time of the first transmission, used to measure the round-trip time. 
+	private long sentAt;
+	
+	private MessagePool pool;
+	private AtomicInteger references;
 
-	public Message(int msgId, byte source, byte type, byte destination, byte[] data, boolean ack) {
+	public Message(int msgId, byte source, byte type, byte destination, ByteBuffer data, boolean ack) {
 		
 		this.msgId = msgId;
 		this.source = source;
@@ -27,9 +46,79 @@ public class Message implements Serializable, Comparable<Message> {
 		this.destination = destination;
 		this.data = data;
 		this.ack = ack;
+		this.references = new AtomicInteger(1);
+	}
+		
+	/*
+	 * Creates an empty message belonging to the given pool. 
+	 */
+	Message(MessagePool pool) {
+		
+		this.pool = pool;
+		this.references = new AtomicInteger();
+	}
+	
+	/*
+	 * Sets all fields of a message taken from the pool. 
+	 */
+	public void set(int msgId, byte source, byte type, byte destination, ByteBuffer data) {
 		
+		this.msgId = msgId;
+		this.source = source;
+		this.type = type;
+		this.destination = destination;
+		this.data = data;
+		this.ack = false;
+		this.owner = null;
 		this.numOfRetransmits = 0;
-		this.time = System.currentTimeMillis();
+		this.time = 0;
+		this.sentAt = 0;
+	}
+	
+	/*
+	 * Makes the payload the given bytes of a pooled buffer, holding a reference to it until the message is released. 
+	 * Views of the pooled buffers are kept from one use of the message to the next, so this does not allocate once 
+	 * the message has seen every buffer. 
+	 */
+	public void wrap(BufferPool.Buffer buffer, int offset, int length) {
+		
+		int index = buffer.getIndex();
+		if (views == null || views.length <= index) {
+			ByteBuffer[] tmp = new ByteBuffer[index + 1];
+			if (views != null) {
+				System.arraycopy(views, 0, tmp, 0, views.length);
+			}
+			views = tmp;
+		}
+		if (views[index] == null) {
+			views[index] = buffer.getBuffer().duplicate();
+		}
+		
+		ByteBuffer view = views[index];
+		view.limit(offset + length);
+		view.position(offset);
+		buffer.retain();
+		this.data = view;
+		this.owner = buffer;
+	}
+	
+	/*
+	 * Makes the payload a copy of the given bytes of the buffer, kept in a buffer of the message that is reused. 
+	 */
+	public void copy(ByteBuffer buffer, int offset, int length) {
+		
+		if (copy == null || copy.capacity() < length) {
+			copy = ByteBuffer.allocate(Math.max(length, 64));
+		}
+		copy.clear();
+		if (buffer.hasArray()) {
+			copy.put(buffer.array(), buffer.arrayOffset() + offset, length);
+		}else {
+			for (int i = 0 ; i < length ; i++) {
+				copy.put(buffer.get(offset + i));
+			}
+		}
+		this.data = copy.flip();
 	}
 	
 	public int getMsgId() {
@@ -72,14 +161,74 @@ public class Message implements Serializable, Comparable<Message> {
 		this.destination = destination;
 	}
 
-	public byte[] getData() {
+	/*
+	 * The payload, between the position and the limit of the buffer. It is shared, so it must not be modified. 
+	 */
+	public ByteBuffer getData() {
 		return data;
 	}
 
-	public void setData(byte[] data) {
+	public void setData(ByteBuffer data) {
 		this.data = data;
 	}
 
+	public int getNumOfRetransmits() {
+		return numOfRetransmits;
+	}
+	
+	public void setNumOfRetransmits(int numOfRetransmits) {
+		this.numOfRetransmits = numOfRetransmits;
+	}
+	
+	public long getTime() {
+		return time;
+	}
+	
+	public void setTime(long time) {
+		this.time = time;
+	}
+	
+	public long getSentAt() {
+		return sentAt;
+	}
+	
+	public void setSentAt(long sentAt) {
+		this.sentAt = sentAt;
+	}
+
+	/*
+	 * Takes one more reference to the message. 
+	 */
+	public void retain() {
+		references.incrementAndGet();
+	}
+	
+	/*
+	 * Drops one reference to the message. The last one releases the pooled buffer holding its data, if any, 
+	 * and returns the message to its pool. 
+	 */
+	public void release() {
+		
+		if (references.decrementAndGet() != 0) {
+			return;
+		}
+		if (owner != null) {
+			owner.release();
+			owner = null;
+		}
+		data = null;
+		if (pool != null) {
+			pool.recycle(this);
+		}
+	}
+	
+	/*
+	 * Called by the pool when the message is handed out again. 
+	 */
+	void reset() {
+		references.set(1);
+	}
+
 	public boolean isAck() {
 		return ack;
 	}
@@ -125,7 +274,7 @@ public class Message implements Serializable, Comparable<Message> {
 	@Override
 	public String toString() {
 		return "Message [messageId=" + msgId + ", sourceId=" + source + ", type=" + type + ", destinationId="
-				+ destination + ", data=" + Arrays.toString(data) + ", ack=" + ack + ", numOfRetransmits="
+				+ destination + ", data=" + data + ", ack=" + ack + ", numOfRetransmits="
 				+ numOfRetransmits + ", time=" + time + "]";
 	}
 	
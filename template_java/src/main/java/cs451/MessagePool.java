@@ -0,0 +1,48 @@
+package cs451;
+
+/*
+ * Pool of the messages used on the send and receive paths of Perfect Links, so that steady state traffic does 
+ * not allocate a message per packet. Released messages are kept on a stack, up to the capacity of the pool, 
+ * and messages released when the pool is full are left to the garbage collector. 
+ */
+public class MessagePool {
+	
+	private Message[] free;
+	private int size;
+	
+	public MessagePool(int capacity) {
+		
+		this.free = new Message[capacity];
+		this.size = 0;
+	}
+	
+	/*
+	 * Takes a message from the pool, creating a new one if none is free. The caller owns one reference to it, 
+	 * and is expected to set all its fields. 
+	 */
+	public Message acquire() {
+		
+		Message mess = null;
+		synchronized (this) {
+			if (size > 0) {
+				mess = free[--size];
+				free[size] = null;
+			}
+		}
+		if (mess == null) {
+			mess = new Message(this);
+		}
+		mess.reset();
+		return mess;
+	}
+	
+	/*
+	 * Called by a message when its last reference is released. 
+	 */
+	synchronized void recycle(Message mess) {
+		
+		if (size < free.length) {
+			free[size++] = mess;
+		}
+	}
+}
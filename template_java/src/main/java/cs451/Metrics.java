@@ -0,0 +1,160 @@
+package cs451;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Metrics of the protocol stack of one process: counters, gauges sampled when read, and histograms. Counters are 
+ * LongAdders, so that threads incrementing the same one do not contend. The layers look their metrics up once, 
+ * when they are created, and keep them in fields. 
+ * 
+ * The metrics are exposed over JMX, and can be appended periodically to a file, one line per dump with the time 
+ * followed by name=value pairs, in the order of the names. 
+ */
+public class Metrics implements MetricsMXBean {
+	
+	private ConcurrentSkipListMap<String, LongAdder> counters;
+	private ConcurrentSkipListMap<String, LongSupplier> gauges;
+	private ConcurrentSkipListMap<String, Histogram> histograms;
+	
+	private ObjectName name;
+	private PrintWriter dump;
+	private Thread dumper;
+	private volatile boolean stop;
+	
+	public Metrics() {
+		
+		counters = new ConcurrentSkipListMap<String, LongAdder>();
+		gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+		histograms = new ConcurrentSkipListMap<String, Histogram>();
+		stop = false;
+	}
+	
+	/*
+	 * Counter with the given name, created the first time it is asked for. 
+	 */
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, x -> new LongAdder());
+	}
+	
+	/*
+	 * Registers a value that is read each time the metrics are, such as the size of a queue. 
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+	
+	/*
+	 * Histogram with the given name, created the first time it is asked for. 
+	 */
+	public Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, x -> new Histogram());
+	}
+	
+	@Override
+	public Map<String, Long> getValues() {
+		
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		counters.forEach((name, counter) -> values.put(name, counter.sum()));
+		gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+		histograms.forEach((name, histogram) -> {
+			values.put(name + ".count", histogram.getCount());
+			values.put(name + ".mean", histogram.getMean());
+			values.put(name + ".p50", histogram.getPercentile(50));
+			values.put(name + ".p90", histogram.getPercentile(90));
+			values.put(name + ".p99", histogram.getPercentile(99));
+			values.put(name + ".max", histogram.getMax());
+		});
+		return values;
+	}
+	
+	/*
+	 * Exposes the metrics over JMX, for the process with the given id. 
+	 */
+	public void register(int processId) {
+		
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("cs451:type=Metrics,process=" + processId);
+			server.registerMBean(this, name);
+		}catch (JMException e) {
+			System.out.println("Could not register the metrics over JMX ");
+			e.printStackTrace();
+			name = null;
+		}
+	}
+	
+	/*
+	 * Appends the metrics to the given file every given number of milliseconds, until stopped. 
+	 */
+	public void startDumping(String path, long intervalMs) {
+		
+		try {
+			dump = new PrintWriter(new FileWriter(path, true));
+		}catch (IOException e) {
+			System.out.println("Could not open the metrics file " + path);
+			e.printStackTrace();
+			return;
+		}
+		
+		dumper = Threads.newThread("metrics", () -> {
+			while (!stop) {
+				try {
+					Thread.sleep(intervalMs);
+				}catch (InterruptedException e) {
+					return;
+				}
+				if (!stop) {
+					dump();
+				}
+			}
+		});
+		dumper.start();
+	}
+	
+	private synchronized void dump() {
+		
+		StringBuilder line = new StringBuilder();
+		line.append("time=").append(System.currentTimeMillis());
+		getValues().forEach((name, value) -> line.append(' ').append(name).append('=').append(value));
+		dump.println(line);
+		dump.flush();
+	}
+	
+	/*
+	 * Stops the periodic dumps after a last one, and removes the metrics from JMX. 
+	 */
+	public void stop() {
+		
+		stop = true;
+		if (dumper != null) {
+			dumper.interrupt();
+			try {
+				dumper.join();
+			}catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			dump();
+			dump.close();
+		}
+		
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package cs451;
+
+import java.util.Map;
+
+/*
+ * Management interface of Metrics, registered under cs451:type=Metrics,process=<id>. 
+ */
+public interface MetricsMXBean {
+	
+	/*
+	 * Current value of every counter and gauge, and the count, mean, percentiles and maximum of every histogram, 
+	 * by name. 
+	 */
+	Map<String, Long> getValues();
+}
@@ -0,0 +1,106 @@
+package cs451;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+
+/*
+ * Transport built on a blocking DatagramChannel. Outgoing datagrams are built in direct buffers, and incoming 
+ * datagrams are received in pooled direct buffers, from which payloads are handed up as slices, without copying them. 
+ */
+public class NioUDP extends UDP {
+	
+	// Size of the pooled receive buffers, each of them holding several datagrams. 
+	private static final int POOLED_BUFFER_SIZE = 16 * BUFFER_SIZE;
+	
+	// Channels bound to the port of this process, messages are sent from the first one. 
+	private DatagramChannel[] channels;
+	private BufferPool pool;
+	// Per receiver thread, the buffer it receives in, and a view of it positioned on the datagram handed to handleDatagram. 
+	private BufferPool.Buffer[] current;
+	private ByteBuffer[] datagrams;
+	
+	public NioUDP(String ip, int port, int myId, List<Host> hosts, PerfectLinks pl) {
+		
+		super(ip, port, myId, hosts, pl);
+		
+		pool = new BufferPool(POOLED_BUFFER_SIZE);
+	}
+	
+	@Override
+	protected void open() throws IOException {
+		
+		DatagramChannel first = DatagramChannel.open();
+		channels = new DatagramChannel[numOfSockets(first.supportedOptions())];
+		channels[0] = first;
+		for (int i = 1 ; i < channels.length ; i++) {
+			channels[i] = DatagramChannel.open();
+		}
+		for (DatagramChannel channel : channels) {
+			if (channels.length > 1) {
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channel.bind(new InetSocketAddress(port));
+		}
+		
+		current = new BufferPool.Buffer[numOfReceivers];
+		datagrams = new ByteBuffer[numOfReceivers];
+		for (int i = 0 ; i < numOfReceivers ; i++) {
+			current[i] = pool.acquire();
+			datagrams[i] = current[i].getBuffer().duplicate();
+		}
+	}
+	
+	@Override
+	protected ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocateDirect(capacity);
+	}
+	
+	@Override
+	protected void transmit(ByteBuffer output, int destId) throws IOException {
+		
+		output.flip();
+		channels[0].send(output, addresses[destId - 1]);
+	}
+	
+	@Override
+	protected void receive(int receiver) throws IOException {
+		
+		// Move on to a fresh buffer when there is no room left for a full datagram, the old one 
+		// goes back to the pool once all messages received in it have been released. 
+		ByteBuffer buffer = current[receiver].getBuffer();
+		if (buffer.remaining() < BUFFER_SIZE) {
+			current[receiver].release();
+			current[receiver] = pool.acquire();
+			buffer = current[receiver].getBuffer();
+			datagrams[receiver] = buffer.duplicate();
+		}
+		
+		int start = buffer.position();
+		channels[receiver % channels.length].receive(buffer);
+		
+		if (close) {
+			return;
+		}
+		
+		ByteBuffer datagram = datagrams[receiver];
+		datagram.limit(buffer.position());
+		datagram.position(start);
+		handleDatagram(datagram, current[receiver], receiver);
+	}
+	
+	@Override
+	protected void closeEndpoint() {
+		
+		for (DatagramChannel channel : channels) {
+			try {
+				channel.close();
+			}catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package cs451;
+
+/*
+ * Messages sent to one destination that have not been acked yet, indexed by message id. Since the ids of a link 
+ * are contiguous, the table is a ring buffer covering the ids from the lowest outstanding one to the highest one 
+ * added, which grows when that range does not fit anymore. Adding, looking up and removing a message are a 
+ * single array access, without any allocation. 
+ * 
+ * Messages must be added in increasing id order. 
+ */
+public class OutstandingTable {
+	
+	private Message[] slots;
+	private int mask;
+	// All ids up to this one have been removed. 
+	private int base;
+	// Highest id added so far. 
+	private int last;
+	private int size;
+	
+	public OutstandingTable(int initialCapacity) {
+		
+		int capacity = Integer.highestOneBit(Math.max(initialCapacity - 1, 1)) << 1;
+		this.slots = new Message[capacity];
+		this.mask = capacity - 1;
+		this.base = 0;
+		this.last = 0;
+		this.size = 0;
+	}
+	
+	public synchronized void add(Message mess) {
+		
+		int id = mess.getMsgId();
+		while (id - base > slots.length) {
+			grow();
+		}
+		slots[id & mask] = mess;
+		last = Math.max(last, id);
+		size++;
+	}
+	
+	/*
+	 * Returns the outstanding message with the given id, or null if it has been removed. 
+	 */
+	public synchronized Message get(int id) {
+		
+		if (id <= base || id > last) {
+			return null;
+		}
+		return slots[id & mask];
+	}
+	
+	/*
+	 * Same as get, but takes a reference to the message before returning it, so that it cannot be recycled 
+	 * if it gets acked in the meantime. 
+	 */
+	public synchronized Message retain(int id) {
+		
+		Message mess = get(id);
+		if (mess != null) {
+			mess.retain();
+		}
+		return mess;
+	}
+	
+	/*
+	 * Removes and returns the message with the given id, or null if it was not outstanding. The reference the table 
+	 * held on the message is handed over to the caller. 
+	 */
+	public synchronized Message remove(int id) {
+		
+		if (id <= base || id > last) {
+			return null;
+		}
+		Message mess = slots[id & mask];
+		if (mess == null) {
+			return null;
+		}
+		slots[id & mask] = null;
+		size--;
+		
+		// Move the base over the ids removed contiguously after it. 
+		while (base < last && slots[(base + 1) & mask] == null) {
+			base++;
+		}
+		return mess;
+	}
+	
+	/*
+	 * All ids up to the returned one have been removed. 
+	 */
+	public synchronized int getBase() {
+		return base;
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	private void grow() {
+		
+		Message[] old = slots;
+		slots = new Message[old.length * 2];
+		mask = slots.length - 1;
+		for (int id = base + 1 ; id <= last ; id++) {
+			slots[id & mask] = old[id & (old.length - 1)];
+		}
+	}
+}
@@ -4,11 +4,15 @@ import java.io.BufferedWriter;
 import java.nio.ByteBuffer;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.HashSet;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * Class implementing the Perfect Links layer of communication. This is done via UDP sockets. 
@@ -16,32 +20,75 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class PerfectLinks {
 	
-	private static final int MAX_NUMBER_OF_PROCESSES = 8;
+	// Number of message ids after the watermark of each source for which deliveries are tracked. 
+	// It must not be smaller than the largest congestion window, or the sender overruns it. 
+	private static final int DELIVERED_WINDOW = 8192;
+	// Initial capacity of the table of outstanding messages of each destination. 
+	private static final int OUTSTANDING_CAPACITY = 1024;
+	// Number of slots of the retransmission timer wheel, one per tick. 
+	private static final int WHEEL_SLOTS = 1024;
+	// Maximum number of free messages kept for reuse. 
+	private static final int MESSAGE_POOL_CAPACITY = 1 << 16;
+	// Number of received messages each receiver thread can have waiting. 
+	private static final int RECEIVE_QUEUE_CAPACITY = 1 << 16;
 	
-	private UDP udp;
-//	private UniformReliableBroadcast urb;
-	private LatticeAgreement la;
+	// Queued when stopping, so that the receiver threads do not wait for messages anymore. 
+	private static final Message STOP = new Message(0, (byte)0, (byte)0, (byte)0, null, false);
+	
+	private Transport transport;
+	// Layer the messages are delivered to, lattice agreement or uniform reliable broadcast. 
+	private Deliverer upper;
 //	private HashSet<Byte>[][] delivered;
-	private boolean[][] delivered;
+	// Per source, the ids of the messages delivered so far. 
+	private DeliveredWindow[] delivered;
+	// Per source, the time since which an ack is owed to it, or 0. 
+	private AtomicLongArray ackPendingSince;
+	// Per destination, the congestion window and the messages waiting for it. 
+	private CongestionWindow[] windows;
+	private int myId;
 	private int numOfHosts;
 	private int numOfReceivers;
 	private volatile boolean stop;
-	public ConcurrentSkipListSet<Message>[] sentMessages;
-	private LinkedBlockingQueue<Message>[] receiveQueues;
+	// Per destination, the messages sent and not acked yet. 
+	private OutstandingTable[] outstanding;
+	private BlockingQueue<Message>[] receiveQueues;
+	private MessagePool messages;
 	
 	private Thread[] receivers;
 	private Thread retransmitter;
 	
 //	private BufferedWriter bw;
 	
-	private int gcCount = 0;
-	private long time = System.currentTimeMillis();
+	// Retransmission deadlines of the outstanding messages. 
+	private TimerWheel wheel;
+	// Per destination, the estimation of the round-trip time the retransmission timeout is based on. 
+	private RttEstimator[] rtt;
+	
+	// Metrics of this process, shared with the transport and lattice agreement. 
+	private Metrics metrics;
+	private LongAdder messagesSent;
+	private LongAdder retransmits;
+	private LongAdder[] retransmitsTo;
+	private LongAdder messagesDelivered;
+	private LongAdder duplicates;
+	// Messages added to a backlog past its capacity, by senders that cannot wait for room. 
+	private LongAdder overflowed;
+	private Histogram ackRtt;
+	// Number of times each acked message was retransmitted. 
+	private Histogram retransmitsPerMessage;
 	
-	public PerfectLinks(List<Host> hosts, int id, int numOfMessages, LatticeAgreement la) {
+	public PerfectLinks(List<Host> hosts, int id, Deliverer upper) {
+		this(hosts, id, upper, Transport.configured());
+	}
+	
+	/*
+	 * Same as above, with the transport created by the given factory, e.g. to run on a SimulatedNetwork. 
+	 */
+	public PerfectLinks(List<Host> hosts, int id, Deliverer upper, Transport.Factory factory) {
 		
 //		this.bw = bw;
-//		this.urb = urb;
-		this.la = la;
+		this.upper = upper;
+		this.myId = id;
 		
 		Host host = null;
 		for (Host h : hosts) {
@@ -52,10 +99,14 @@ public class PerfectLinks {
 		}
 		
 		numOfHosts = hosts.size();
-		// The maximum number of threads allowed is 8, so the number of receivers needs to be calculated. 
-		// The 7 subtracted represents other threads that the node will spawn (in UDP and the retransmitter and the proposer thread in LA), 
-		// and the Main thread and the garbage collector. 
-		numOfReceivers = MAX_NUMBER_OF_PROCESSES - 7;
+		// Receiver threads deliver the messages to the upper layer, each of them handling a fixed subset of the sources, 
+		// so that the messages of a source are delivered in the order they were received. Virtual threads are cheap, 
+		// so by default there is one per source with them, and a single one otherwise. 
+		if (Constants.DELIVERY_THREADS > 0) {
+			numOfReceivers = Constants.DELIVERY_THREADS;
+		}else {
+			numOfReceivers = Threads.isVirtual() ? numOfHosts : 1;
+		}
 		
 //		delivered = new HashSet[numOfHosts][numOfMessages];
 //		for (int i = 0 ; i < numOfHosts ; i++) {
@@ -63,42 +114,338 @@ public class PerfectLinks {
 //				delivered[i][j] = new HashSet<Byte>();
 //			}
 //		}
-		delivered = new boolean[numOfHosts][numOfMessages];
+		delivered = new DeliveredWindow[numOfHosts];
+		for (int i = 0 ; i < numOfHosts ; i++) {
+			delivered[i] = new DeliveredWindow(DELIVERED_WINDOW);
+		}
+		ackPendingSince = new AtomicLongArray(numOfHosts);
+		windows = new CongestionWindow[numOfHosts];
+		for (int i = 0 ; i < numOfHosts ; i++) {
+			windows[i] = new CongestionWindow(Constants.SEND_BACKLOG);
+		}
 		
 		stop = false;
 
-		sentMessages = new ConcurrentSkipListSet[numOfHosts];
-		hosts.forEach(h -> sentMessages[h.getId() - 1] = new ConcurrentSkipListSet<Message>());
+		outstanding = new OutstandingTable[numOfHosts];
+		for (int i = 0 ; i < numOfHosts ; i++) {
+			outstanding[i] = new OutstandingTable(OUTSTANDING_CAPACITY);
+		}
+		
+		rtt = new RttEstimator[numOfHosts];
+		for (int i = 0 ; i < numOfHosts ; i++) {
+			rtt[i] = new RttEstimator();
+		}
+		wheel = new TimerWheel(WHEEL_SLOTS, Constants.RETRANSMIT_TICK_MS, System.currentTimeMillis(), outstanding);
+		
+		messages = new MessagePool(MESSAGE_POOL_CAPACITY);
+		receiveQueues = new BlockingQueue[numOfReceivers];
+		for (int i = 0 ; i < numOfReceivers ; i++) {
+			receiveQueues[i] = new ArrayBlockingQueue<Message>(RECEIVE_QUEUE_CAPACITY);
+		}
 		
-		receiveQueues = new LinkedBlockingQueue[numOfReceivers];
+		metrics = new Metrics();
+		metrics.register(id);
+		messagesSent = metrics.counter("pl.messagesSent");
+		retransmits = metrics.counter("pl.retransmits");
+		retransmitsTo = new LongAdder[numOfHosts];
+		for (int i = 0 ; i < numOfHosts ; i++) {
+			retransmitsTo[i] = metrics.counter("pl.retransmits." + (i + 1));
+		}
+		messagesDelivered = metrics.counter("pl.messagesDelivered");
+		duplicates = metrics.counter("pl.duplicates");
+		overflowed = metrics.counter("pl.overflowed");
+		ackRtt = metrics.histogram("pl.ackRttMs");
+		retransmitsPerMessage = metrics.histogram("pl.retransmitsPerMessage");
 		for (int i = 0 ; i < numOfReceivers ; i++) {
-			receiveQueues[i] = new LinkedBlockingQueue<Message>();
+			BlockingQueue<Message> queue = receiveQueues[i];
+			metrics.gauge("pl.receiveQueue." + i, () -> queue.size());
 		}
+		metrics.gauge("pl.outstanding", () -> {
+			long size = 0;
+			for (OutstandingTable sent : outstanding) {
+				size += sent.size();
+			}
+			return size;
+		});
 		
-		udp = new UDP(host.getIp(), host.getPort(), hosts, this);
+		transport = factory.create(host, hosts, this);
+		transport.start();
 		
 		startReceiverThreads();
 		startRetransmitThread();
 	}
 	
 	/*
-	 * Send one message to a particular receiver process. 
+	 * Send one message to a particular receiver process. Message ids are assigned per link, 
+	 * so that the receiver can acknowledge them cumulatively. The message is transmitted once the congestion 
+	 * window of the destination allows it, and this blocks while too many messages are already waiting for it, 
+	 * i.e. while the destination does not ack, possibly forever if it crashed. So it must not be called from the 
+	 * threads messages are delivered on, nor from the ones that must keep going while some process does not ack, 
+	 * which use sendNonBlocking instead. 
 	 */
-	public void send(int msgId, byte source, byte type, byte destination, byte[] data) {
+	public void send(byte type, byte destination, ByteBuffer data) {
 		
-//		if (data == null) {
-//			data = ByteBuffer.allocate(4).putInt(msgId).array();
-//		}
-		Message mess = new Message(msgId, source, type, destination, data, false);
-		sentMessages[mess.getDestination()-1].add(mess);
-		udp.send(mess);
+		try {
+			enqueue(type, destination, data, true);
+		}catch(InterruptedException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	/*
-	 * Deliver a message by adding it to a queue. 
+	 * Sends the same message to every process, this one included. The payload is encoded once by the caller and 
+	 * shared by the messages to all destinations, for which UDP only writes a header of their own. Each destination 
+	 * still has its own message id, congestion window and retransmission timer. The message is queued for every 
+	 * destination that has room for it before blocking on the others, so that one slow process does not hold back 
+	 * the broadcast to the rest. 
+	 */
+	public void broadcast(byte type, ByteBuffer data) {
+		
+		boolean[] full = null;
+		for (int destination = 1 ; destination <= numOfHosts ; destination++) {
+			if (isBacklogged((byte)destination)) {
+				if (full == null) {
+					full = new boolean[numOfHosts];
+				}
+				full[destination-1] = true;
+			}else {
+				sendNonBlocking(type, (byte)destination, data);
+			}
+		}
+		
+		if (full != null) {
+			for (int destination = 1 ; destination <= numOfHosts ; destination++) {
+				if (full[destination-1]) {
+					send(type, (byte)destination, data);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Same as send, but never blocks: when too many messages are already waiting for the destination, the message 
+	 * is queued after them all the same. Nothing is dropped, so the backlog of a process that does not ack keeps 
+	 * growing with what is sent to it, and callers that can send something later instead, or send it to another 
+	 * process, should check isBacklogged first. 
+	 */
+	public void sendNonBlocking(byte type, byte destination, ByteBuffer data) {
+		
+		try {
+			enqueue(type, destination, data, false);
+		}catch(InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Same as broadcast, but never blocks, as sendNonBlocking. 
+	 */
+	public void broadcastNonBlocking(byte type, ByteBuffer data) {
+		
+		for (int destination = 1 ; destination <= numOfHosts ; destination++) {
+			sendNonBlocking(type, (byte)destination, data);
+		}
+	}
+	
+	/*
+	 * Whether cs451.sendBacklog messages, or more, are waiting for the congestion window of the destination. 
+	 * This is the back-pressure signal of the links: it only happens once the destination has not acked for 
+	 * a while, because it is slow, stopped, or crashed. 
+	 */
+	public boolean isBacklogged(byte destination) {
+		return destination != myId && windows[destination-1].isFull();
+	}
+	
+	private void enqueue(byte type, byte destination, ByteBuffer data, boolean block) throws InterruptedException {
+		
+		Message mess = messages.acquire();
+		mess.set(0, (byte)myId, type, destination, data);
+		
+		// Messages to this process go straight to its receiver threads, without any socket, ack or retransmission. 
+		// If the queue is full they take the network path instead, since the caller may be the very receiver 
+		// thread that would have to make room in it. 
+		if (destination == myId && receiveQueues[(myId-1) % numOfReceivers].offer(mess)) {
+			return;
+		}
+		
+		CongestionWindow window = windows[destination-1];
+		if (block) {
+			// Only fails once the links are stopping. 
+			if (!window.put(mess)) {
+				mess.release();
+				return;
+			}
+		}else if (!window.add(mess)) {
+			overflowed.increment();
+		}
+		transmit(destination);
+	}
+	
+	/*
+	 * Transmits the messages waiting for the destination, as long as its congestion window has room for them. 
+	 */
+	private void transmit(int destination) {
+		
+		CongestionWindow window = windows[destination-1];
+		while (true) {
+			Message mess;
+			// Messages leave the window in id order, and must be added to the outstanding table in that order too. 
+			synchronized (window) {
+				mess = window.poll();
+				if (mess == null) {
+					return;
+				}
+				long currentTime = System.currentTimeMillis();
+				mess.setSentAt(currentTime);
+				mess.setTime(nextDeadline(mess, currentTime));
+				// The table keeps the reference taken when the message was created, and UDP gets another one. 
+				mess.retain();
+				outstanding[destination-1].add(mess);
+				wheel.schedule(mess);
+			}
+			messagesSent.increment();
+			transport.send(mess);
+		}
+	}
+	
+	/*
+	 * Time at which the message should be retransmitted. The timeout comes from the round-trip times measured 
+	 * for the destination and doubles with each retransmission, with some jitter so that retransmissions 
+	 * to different processes do not happen in lockstep. 
+	 */
+	private long nextDeadline(Message mess, long currentTime) {
+		
+		long timeout = rtt[mess.getDestination()-1].timeout(mess.getNumOfRetransmits());
+		return (long) (currentTime + timeout + Math.random() * timeout / 4);
+	}
+	
+	/*
+	 * Called by the UDP receive thread for every incoming message, whose reference it hands over. New messages 
+	 * are recorded as delivered and added to a queue, and an ack is owed to the source either way. Messages too 
+	 * far ahead of the watermark of their source are dropped without being acked, the sender retransmits them later. 
+	 * The receive thread blocks while the queue of the receiver thread is full, until the links are stopped. 
 	 */
 	public void deliver(Message mess) {
-		receiveQueues[(mess.getSource()-1) % numOfReceivers].add(mess);
+		
+		int source = mess.getSource();
+		if (delivered[source-1].add(mess.getMsgId())) {
+			messagesDelivered.increment();
+			try {
+				// Receiver threads stop taking messages once stopping, the queue might never have room again. 
+				BlockingQueue<Message> queue = receiveQueues[(source-1) % numOfReceivers];
+				while (!queue.offer(mess, Constants.RETRANSMIT_TICK_MS, TimeUnit.MILLISECONDS)) {
+					if (stop) {
+						mess.release();
+						return;
+					}
+				}
+			}catch (InterruptedException e) {
+				mess.release();
+				e.printStackTrace();
+			}
+		}else {
+			duplicates.increment();
+			mess.release();
+		}
+		
+		// Acknowledge duplicates as well, the previous ack might have been lost. 
+		ackPendingSince.compareAndSet(source-1, 0, System.currentTimeMillis());
+	}
+	
+	/*
+	 * Called by the UDP receive thread for every ack, piggybacked or not. Removes all messages it covers from 
+	 * the messages to retransmit: everything up to the watermark of the receiver, plus the ids set in the bitmap 
+	 * of the messages it received after the watermark. 
+	 */
+	public void deliverAck(byte source, int watermark, long sack) {
+		
+		OutstandingTable sent = outstanding[source-1];
+		// Removing all messages up to the watermark, then the ones in the bitmap. Once removed, the timer wheel 
+		// drops them when their deadline comes, and they are released as soon as UDP is done with them. 
+		// The round-trip time is sampled from the most recently sent message the ack covers, 
+		// among those that were never retransmitted. 
+		long lastSent = 0;
+		int numOfAcked = 0;
+		for (int id = sent.getBase() + 1 ; id - watermark <= 0 ; id = sent.getBase() + 1) {
+			Message m = sent.remove(id);
+			if (m == null) {
+				break;
+			}
+			numOfAcked++;
+			retransmitsPerMessage.record(m.getNumOfRetransmits());
+			if (m.getNumOfRetransmits() == 0) {
+				lastSent = Math.max(lastSent, m.getSentAt());
+			}
+			m.release();
+		}
+		
+		while (sack != 0) {
+			Message m = sent.remove(watermark + 1 + Long.numberOfTrailingZeros(sack));
+			if (m != null) {
+				numOfAcked++;
+				retransmitsPerMessage.record(m.getNumOfRetransmits());
+				if (m.getNumOfRetransmits() == 0) {
+					lastSent = Math.max(lastSent, m.getSentAt());
+				}
+				m.release();
+			}
+			sack &= sack - 1;
+		}
+		
+		if (lastSent != 0) {
+			long sample = System.currentTimeMillis() - lastSent;
+			rtt[source-1].sample(sample);
+			ackRtt.record(sample);
+		}
+		
+		// Acked messages make room in the congestion window for the ones waiting. 
+		if (numOfAcked > 0) {
+			Events.ackReceived(source, watermark, numOfAcked);
+			windows[source-1].onAck(numOfAcked);
+			transmit(source);
+		}
+	}
+	
+	/*
+	 * Called by the UDP send thread. Returns whether an ack owed to the given process has been pending since 
+	 * the given time or earlier, in which case the caller is expected to send it. 
+	 */
+	public boolean takeAck(int peer, long pendingSince) {
+		
+		long since = ackPendingSince.get(peer-1);
+		if (since == 0 || since > pendingSince) {
+			return false;
+		}
+		return ackPendingSince.compareAndSet(peer-1, since, 0);
+	}
+	
+	/*
+	 * All messages from the given process with an id up to the returned one have been delivered. 
+	 */
+	public int ackWatermark(int peer) {
+		return delivered[peer-1].getWatermark();
+	}
+	
+	/*
+	 * Bitmap of the messages from the given process delivered after the watermark, bit i standing for id watermark + 1 + i. 
+	 */
+	public long selectiveAck(int peer, int watermark) {
+		return delivered[peer-1].selectiveAck(watermark);
+	}
+	
+	public Transport getTransport() {
+		return transport;
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/*
+	 * Pool the messages received by UDP are taken from. 
+	 */
+	public MessagePool getMessagePool() {
+		return messages;
 	}
 	
 	/*
@@ -110,7 +457,7 @@ public class PerfectLinks {
 		for (int i = 0 ; i < numOfReceivers ; i++) {
 			// Need the final variable in order to use it in the thread.
 			final int tmp = i;
-			receivers[tmp] = new Thread(() -> {
+			receivers[tmp] = Threads.newThread("pl-receiver-" + i, () -> {
 				
 				while(!stop) {
 					
@@ -121,31 +468,9 @@ public class PerfectLinks {
 							return;
 						}
 						
-//						byte relay = mess.isAck() ? mess.getDestination() : mess.getRelay();
-						if (mess.isAck()) {
-							// Removing the message because it doesn't need to be retransmitted anymore. 
-							sentMessages[mess.getDestination()-1].remove(mess);
-							continue;
-						}else {
-							// If it is being delivered now, set the ack of the message to true, and send it back, 
-							// thus acknowledging to the sender that this message has been received. 
-							mess.setAck(true);
-							udp.send(mess);
-						}
-						// Check if the message has already been delivered. 
-						
-//						if (!delivered[mess.getSource()-1][mess.getMsgId()-1].add(relay)) {
-//							continue;
-//						}
-						if (delivered[mess.getSource()-1][mess.getMsgId()-1]) {
-							continue;
-						}
-						
-						delivered[mess.getSource()-1][mess.getMsgId()-1] = true;
-						// Deliver to lattice agreement
-						la.deliver(mess.getType(), mess.getData(), mess.getSource());
-						
-//						urb.deliver(mess.getMsgId(), mess.getSource(), relay, mess.getData());
+						// Duplicates and acks were already filtered out when the message was received. 
+						upper.deliver(mess.getType(), mess.getData(), mess.getSource());
+						mess.release();
 						
 					} catch (InterruptedException e) {
 						e.printStackTrace();
@@ -161,12 +486,13 @@ public class PerfectLinks {
 	 */
 	private void startRetransmitThread() {
 		
-		retransmitter = new Thread(() -> {
+		retransmitter = Threads.newThread("retransmitter", () -> {
 			
+			List<Message> due = new ArrayList<Message>();
 			while(!stop) {
 				
 				try {
-					Thread.sleep(200);
+					Thread.sleep(Constants.RETRANSMIT_TICK_MS);
 				}catch(InterruptedException e) {
 					e.printStackTrace();
 				}
@@ -175,28 +501,24 @@ public class PerfectLinks {
 					return;
 				}
 				
+				long currentTime = System.currentTimeMillis();
 				
-												
-				for(int i = 0 ; i < numOfHosts ; i++) {
-					long currentTime = System.currentTimeMillis();
-					if (this.time < currentTime) {
-						System.gc();
-						gcCount++;
-						this.time = (long)(200 * Math.pow(1.5, gcCount));
-					}
-					for (Message m : sentMessages[i]) {
-//						if (m.numOfRetransmits >= 7) {
-//							sentMessages[i].remove(m);
-//							continue;
-//						}
-						if (m.time < currentTime) {
-							// Implementation of an exponential backoff mechanism. 
-							m.numOfRetransmits++;
-							m.time = (long) (currentTime + Math.random()*100 + 200 * Math.pow(2, m.numOfRetransmits));
-							udp.send(m);
-						}
-					}
+				// Only the messages whose deadline has passed are looked at. The reference the wheel took 
+				// on each of them is handed over to UDP. 
+				wheel.expire(currentTime, due);
+				for (int i = 0 ; i < due.size() ; i++) {
+					Message m = due.get(i);
+					// Implementation of an exponential backoff mechanism. 
+					m.setNumOfRetransmits(m.getNumOfRetransmits() + 1);
+					m.setTime(nextDeadline(m, currentTime));
+					windows[m.getDestination()-1].onTimeout(currentTime, rtt[m.getDestination()-1].timeout(0));
+					wheel.schedule(m);
+					retransmits.increment();
+					retransmitsTo[m.getDestination()-1].increment();
+					Events.retransmit(m.getDestination(), m.getMsgId(), m.getNumOfRetransmits());
+					transport.send(m);
 				}
+				due.clear();
 			}
 		});
 		retransmitter.start();
@@ -205,11 +527,15 @@ public class PerfectLinks {
 	public void stopLinks() {
 		
 		stop = true;
-		udp.closeSocket();
+		// Senders waiting for room in a window of a process that does not ack anymore return. 
+		for (CongestionWindow window : windows) {
+			window.close();
+		}
+		transport.closeSocket();
 		
 		// Adding empty messages in order for the queues to not block forever.
-		for (LinkedBlockingQueue<Message> tmp : receiveQueues) {
-			tmp.add(new Message(0, (byte)0, (byte)0, (byte)0, null, false));
+		for (BlockingQueue<Message> tmp : receiveQueues) {
+			tmp.offer(STOP);
 		}
 		
 		for (int i = 0 ; i < numOfReceivers ; i++) {
@@ -225,5 +551,7 @@ public class PerfectLinks {
 		}catch(InterruptedException e) {
 			e.printStackTrace();
 		}
+		
+		metrics.stop();
 	}
 }
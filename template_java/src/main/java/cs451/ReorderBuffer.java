@@ -0,0 +1,104 @@
+package cs451;
+
+/*
+ * Reorder buffer of the messages of one source, for FIFO delivery. A circular bitset records which ids after the 
+ * next one to deliver have arrived, indexed by the id modulo its size. Once the next id arrives, 
+ * the run of consecutive ids following it is released a word of the bitset at a time. Ids are plain ints, nothing is 
+ * allocated per message. Unlike a DeliveredWindow, no id can be rejected, so the bitset doubles when one falls 
+ * beyond it. 
+ * 
+ * It is not thread safe, the messages of a source are added one at a time. 
+ */
+public class ReorderBuffer {
+	
+	private long[] bits;
+	private int size;
+	private int mask;
+	private int next;
+	
+	/*
+	 * The initial size of the buffer is rounded up to a power of two, of at least 64. 
+	 */
+	public ReorderBuffer(int size) {
+		
+		this.size = Math.max(Integer.highestOneBit(Math.max(size - 1, 1)) << 1, 64);
+		this.mask = this.size - 1;
+		this.bits = new long[this.size / 64];
+		this.next = 1;
+	}
+	
+	/*
+	 * The id of the next message to deliver, all the ones before it were released. 
+	 */
+	public int getNext() {
+		return next;
+	}
+	
+	/*
+	 * Records the id as arrived. Returns false if it already was, or if it was released. 
+	 */
+	public boolean add(int id) {
+		
+		if (id - next < 0) {
+			return false;
+		}
+		while (id - next >= size) {
+			grow();
+		}
+		if ((bits[index(id)] & bit(id)) != 0) {
+			return false;
+		}
+		bits[index(id)] |= bit(id);
+		return true;
+	}
+	
+	/*
+	 * Releases the ids that arrived consecutively from the next one on, and returns how many there are. They are 
+	 * the ids from the next one before the call, up to the next one after it, excluded. 
+	 */
+	public int release() {
+		
+		int released = 0;
+		while (true) {
+			int offset = next & 63;
+			long word = bits[index(next)] >>> offset;
+			// Arrived ids are set bits, the run ends at the first clear one, or at the end of the word. 
+			int run = Long.numberOfTrailingZeros(~word);
+			if (run == 0) {
+				return released;
+			}
+			long runBits = run == 64 ? -1L : ((1L << run) - 1) << offset;
+			bits[index(next)] &= ~runBits;
+			next += run;
+			released += run;
+			if (offset + run < 64) {
+				return released;
+			}
+		}
+	}
+	
+	/*
+	 * Doubles the size of the bitset, moving the ids that arrived to their bits in the new one. 
+	 */
+	private void grow() {
+		
+		long[] old = bits;
+		int oldMask = mask;
+		size <<= 1;
+		mask = size - 1;
+		bits = new long[size / 64];
+		for (int id = next ; id - next < size / 2 ; id++) {
+			if ((old[(id & oldMask) >>> 6] & bit(id)) != 0) {
+				bits[index(id)] |= bit(id);
+			}
+		}
+	}
+	
+	private int index(int id) {
+		return (id & mask) >>> 6;
+	}
+	
+	private long bit(int id) {
+		return 1L << (id & 63);
+	}
+}
@@ -0,0 +1,49 @@
+package cs451;
+
+/*
+ * Round-trip time estimation for one peer, computing the retransmission timeout as TCP does (RFC 6298). 
+ * Samples are only taken from messages that were never retransmitted (Karn's rule), since the ack of a 
+ * retransmitted message could belong to any of its copies. 
+ */
+public class RttEstimator {
+	
+	// Timeout used until the first sample is taken, which is the fixed timeout used before. 
+	private static final long INITIAL_RTO_MS = 200;
+	private static final long MIN_RTO_MS = 20;
+	private static final long MAX_RTO_MS = 60000;
+	
+	private double srtt;
+	private double rttvar;
+	private long rto;
+	private boolean sampled;
+	
+	public RttEstimator() {
+		
+		this.rto = INITIAL_RTO_MS;
+		this.sampled = false;
+	}
+	
+	/*
+	 * Updates the estimation with the round-trip time, in milliseconds, of a message acked without being retransmitted. 
+	 */
+	public synchronized void sample(long rtt) {
+		
+		if (!sampled) {
+			srtt = rtt;
+			rttvar = rtt / 2.0;
+			sampled = true;
+		}else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+			srtt = 0.875 * srtt + 0.125 * rtt;
+		}
+		rto = Math.min(Math.max((long) Math.ceil(srtt + Math.max(Constants.RETRANSMIT_TICK_MS, 4 * rttvar)), MIN_RTO_MS), MAX_RTO_MS);
+	}
+	
+	/*
+	 * Retransmission timeout for a message that has already been retransmitted the given number of times, 
+	 * doubling with each retransmission. 
+	 */
+	public synchronized long timeout(int numOfRetransmits) {
+		return Math.min(rto << Math.min(numOfRetransmits, 20), MAX_RTO_MS);
+	}
+}
@@ -0,0 +1,153 @@
+package cs451;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Queue of the messages waiting for the UDP sender, split in classes served by weighted round robin. In each 
+ * round, every class in turn hands over up to its weight in messages, so that the small control messages of 
+ * lattice agreement get ahead of the bulk of proposals and retransmissions, without starving them. 
+ * Each class is a bounded ring buffer, and senders block while the queue of their class is full. 
+ */
+public class SendScheduler {
+	
+	// Acks, nacks and TLC messages of lattice agreement. 
+	public static final int CONTROL = 0;
+	// Proposals sent for the first time. 
+	public static final int PROPOSAL = 1;
+	// Messages of any type sent again after a timeout. 
+	public static final int RETRANSMISSION = 2;
+	private static final int NUM_OF_CLASSES = 3;
+	
+	private Message[][] queues;
+	private int[] heads;
+	private int[] sizes;
+	private int[] weights;
+	private int size;
+	private ReentrantLock lock;
+	private Condition notEmpty;
+	private Condition notFull;
+	
+	public SendScheduler(int capacity, int controlWeight, int proposalWeight, int retransmissionWeight) {
+		
+		queues = new Message[NUM_OF_CLASSES][capacity];
+		heads = new int[NUM_OF_CLASSES];
+		sizes = new int[NUM_OF_CLASSES];
+		weights = new int[] {Math.max(controlWeight, 1), Math.max(proposalWeight, 1), Math.max(retransmissionWeight, 1)};
+		size = 0;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+	}
+	
+	/*
+	 * Class of a message: retransmissions, then proposals, and everything else is control traffic. 
+	 */
+	public static int classOf(Message mess) {
+		
+		if (mess.getNumOfRetransmits() > 0) {
+			return RETRANSMISSION;
+		}
+		return mess.getType() == 0 ? PROPOSAL : CONTROL;
+	}
+	
+	/*
+	 * Queues the message in its class, blocking while that class is full. 
+	 */
+	public void put(Message mess) throws InterruptedException {
+		
+		int c = classOf(mess);
+		lock.lockInterruptibly();
+		try {
+			while (sizes[c] == queues[c].length) {
+				notFull.await();
+			}
+			enqueue(mess, c);
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	/*
+	 * Queues the message in its class, unless that class is full. 
+	 */
+	public boolean offer(Message mess) {
+		
+		int c = classOf(mess);
+		lock.lock();
+		try {
+			if (sizes[c] == queues[c].length) {
+				return false;
+			}
+			enqueue(mess, c);
+			return true;
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	/*
+	 * Number of messages queued in the given class. 
+	 */
+	public int size(int c) {
+		
+		lock.lock();
+		try {
+			return sizes[c];
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	/*
+	 * Waits at most the given time for a message to be queued, then moves up to max messages to the batch, 
+	 * interleaving the classes according to their weights. Returns the number of messages moved. 
+	 */
+	public int drain(List<Message> batch, int max, long timeoutMs) throws InterruptedException {
+		
+		lock.lockInterruptibly();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+			while (size == 0) {
+				if (nanos <= 0) {
+					return 0;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			
+			int moved = 0;
+			while (size > 0 && moved < max) {
+				for (int c = 0 ; c < NUM_OF_CLASSES && moved < max ; c++) {
+					for (int i = 0 ; i < weights[c] && sizes[c] > 0 && moved < max ; i++) {
+						batch.add(dequeue(c));
+						moved++;
+					}
+				}
+			}
+			notFull.signalAll();
+			return moved;
+		}finally {
+			lock.unlock();
+		}
+	}
+	
+	private void enqueue(Message mess, int c) {
+		
+		queues[c][(heads[c] + sizes[c]) % queues[c].length] = mess;
+		sizes[c]++;
+		size++;
+		notEmpty.signal();
+	}
+	
+	private Message dequeue(int c) {
+		
+		Message mess = queues[c][heads[c]];
+		queues[c][heads[c]] = null;
+		heads[c] = (heads[c] + 1) % queues[c].length;
+		sizes[c]--;
+		size--;
+		return mess;
+	}
+}
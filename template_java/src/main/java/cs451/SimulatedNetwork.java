@@ -0,0 +1,281 @@
+package cs451;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * In-memory network connecting processes running in the same JVM, each of them through a SimulatedUDP transport. 
+ * Datagrams are delayed by a base delay plus an exponentially distributed jitter, can be lost, held back so that 
+ * later ones overtake them, and do not cross partitions. All these decisions are drawn from a single seeded random 
+ * generator. The threads of the processes still interleave freely, so a seed reproduces the network conditions, 
+ * not the exact same run. 
+ * 
+ * Like a socket buffer, the inbox of a process has a bounded capacity, datagrams arriving while it is full are dropped. 
+ */
+public class SimulatedNetwork implements Transport.Factory {
+	
+	// Number of datagrams each process can have waiting to be received. 
+	private static final int INBOX_CAPACITY = 1 << 12;
+	// Queued in the inbox of a process when it disconnects, so that its receiver threads do not wait anymore. 
+	static final byte[] CLOSED = new byte[0];
+	
+	private Random random;
+	private double loss;
+	private long delayNanos;
+	private double jitterMeanNanos;
+	private double reorder;
+	private long reorderDelayNanos;
+	// Per process, the partition it is in. Datagrams are only delivered between processes of the same partition. 
+	private int[] partitions;
+	private long sequence;
+	
+	private List<BlockingQueue<byte[]>> inboxes;
+	private boolean[] connected;
+	private DelayQueue<Datagram> inFlight;
+	private Thread deliverer;
+	private volatile boolean stop;
+	
+	private AtomicLong sent;
+	private AtomicLong dropped;
+	
+	public SimulatedNetwork(int numOfProcesses, long seed) {
+		
+		random = new Random(seed);
+		loss = 0;
+		delayNanos = 0;
+		jitterMeanNanos = 0;
+		reorder = 0;
+		reorderDelayNanos = 0;
+		partitions = new int[numOfProcesses];
+		sequence = 0;
+		
+		inboxes = new ArrayList<BlockingQueue<byte[]>>(numOfProcesses);
+		for (int i = 0 ; i < numOfProcesses ; i++) {
+			inboxes.add(new ArrayBlockingQueue<byte[]>(INBOX_CAPACITY));
+		}
+		connected = new boolean[numOfProcesses];
+		inFlight = new DelayQueue<Datagram>();
+		sent = new AtomicLong();
+		dropped = new AtomicLong();
+		
+		stop = false;
+		startDeliverThread();
+	}
+	
+	/*
+	 * Probability that a datagram is lost. 
+	 */
+	public synchronized void setLoss(double loss) {
+		this.loss = loss;
+	}
+	
+	/*
+	 * Every datagram is delayed by the given time, plus an exponentially distributed jitter of the given mean. 
+	 * A jitter reorders datagrams between the same processes, without it they arrive in the order they were sent. 
+	 */
+	public synchronized void setDelay(long delayMs, double jitterMeanMs) {
+		
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+		this.jitterMeanNanos = jitterMeanMs * 1e6;
+	}
+	
+	/*
+	 * Probability that a datagram is held back for the given additional time, letting the ones sent after it overtake it. 
+	 */
+	public synchronized void setReorder(double reorder, long reorderDelayMs) {
+		
+		this.reorder = reorder;
+		this.reorderDelayNanos = TimeUnit.MILLISECONDS.toNanos(reorderDelayMs);
+	}
+	
+	/*
+	 * Isolates the given processes from all others: they keep communicating with each other, and so do the others. 
+	 * Datagrams already in flight across the partition are lost. 
+	 */
+	public synchronized void partition(int... ids) {
+		
+		int partition = 0;
+		for (int p : partitions) {
+			partition = Math.max(partition, p + 1);
+		}
+		for (int id : ids) {
+			partitions[id - 1] = partition;
+		}
+	}
+	
+	/*
+	 * Removes all partitions. 
+	 */
+	public synchronized void heal() {
+		
+		for (int i = 0 ; i < partitions.length ; i++) {
+			partitions[i] = 0;
+		}
+	}
+	
+	@Override
+	public Transport create(Host host, List<Host> hosts, PerfectLinks pl) {
+		return new SimulatedUDP(this, host, hosts, pl);
+	}
+	
+	/*
+	 * Called by the transport of the given process when it starts. Returns the inbox its datagrams are delivered to. 
+	 */
+	synchronized BlockingQueue<byte[]> connect(int id) {
+		
+		connected[id - 1] = true;
+		return inboxes.get(id - 1);
+	}
+	
+	/*
+	 * Called by the transport of the given process when it closes. Datagrams are not delivered to it anymore, and each 
+	 * of its receiver threads takes a CLOSED datagram from its inbox. 
+	 */
+	void disconnect(int id, int numOfReceivers) {
+		
+		synchronized(this) {
+			connected[id - 1] = false;
+		}
+		BlockingQueue<byte[]> inbox = inboxes.get(id - 1);
+		for (int i = 0 ; i < numOfReceivers ; i++) {
+			while (!inbox.offer(CLOSED)) {
+				inbox.poll();
+			}
+		}
+	}
+	
+	/*
+	 * Sends a datagram from a process to another one. The network takes ownership of the array. 
+	 */
+	void send(int source, int destination, byte[] datagram) {
+		
+		sent.incrementAndGet();
+		long delay;
+		long seq;
+		synchronized(this) {
+			if (random.nextDouble() < loss || partitions[source - 1] != partitions[destination - 1]) {
+				dropped.incrementAndGet();
+				return;
+			}
+			delay = delayNanos;
+			if (jitterMeanNanos > 0) {
+				delay += (long) (-jitterMeanNanos * Math.log(1 - random.nextDouble()));
+			}
+			if (random.nextDouble() < reorder) {
+				delay += reorderDelayNanos;
+			}
+			seq = sequence++;
+		}
+		inFlight.put(new Datagram(source, datagram, destination, System.nanoTime() + delay, seq));
+	}
+	
+	public long getSent() {
+		return sent.get();
+	}
+	
+	/*
+	 * Number of datagrams lost, whether by chance, because of a partition or because the inbox of their destination was full. 
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	private void startDeliverThread() {
+		
+		deliverer = Threads.newThread("network", () -> {
+			while (!stop) {
+				try {
+					Datagram datagram = inFlight.take();
+					if (stop) {
+						return;
+					}
+					
+					int destination = datagram.getDestination();
+					boolean reachable;
+					synchronized(this) {
+						reachable = connected[destination - 1] && partitions[datagram.getSource() - 1] == partitions[destination - 1];
+					}
+					if (!reachable || !inboxes.get(destination - 1).offer(datagram.getData())) {
+						dropped.incrementAndGet();
+					}
+				}catch (InterruptedException e) {
+					e.printStackTrace();
+					return;
+				}
+			}
+		});
+		
+		deliverer.start();
+	}
+	
+	/*
+	 * Stops delivering datagrams. 
+	 */
+	public void close() {
+		
+		// Queued so that the delivery thread does not wait anymore. 
+		stop = true;
+		inFlight.put(new Datagram(0, CLOSED, 0, System.nanoTime(), -1));
+		try {
+			deliverer.join();
+		}catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * A datagram in flight, until the time it is delivered at. Datagrams due at the same time are delivered in the 
+	 * order they were sent. 
+	 */
+	private static class Datagram implements Delayed {
+		
+		private int source;
+		private byte[] data;
+		private int destination;
+		private long deliverAt;
+		private long seq;
+		
+		Datagram(int source, byte[] data, int destination, long deliverAt, long seq) {
+			
+			this.source = source;
+			this.data = data;
+			this.destination = destination;
+			this.deliverAt = deliverAt;
+			this.seq = seq;
+		}
+		
+		public int getSource() {
+			return source;
+		}
+		
+		public byte[] getData() {
+			return data;
+		}
+		
+		public int getDestination() {
+			return destination;
+		}
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed other) {
+			
+			Datagram o = (Datagram) other;
+			if (deliverAt != o.deliverAt) {
+				return Long.compare(deliverAt, o.deliverAt);
+			}
+			return Long.compare(seq, o.seq);
+		}
+	}
+}
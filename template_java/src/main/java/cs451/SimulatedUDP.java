@@ -0,0 +1,58 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Transport of a process connected to a SimulatedNetwork. Batching, acks and the wire format are those of UDP, 
+ * only the datagrams go through the in-memory network instead of a socket. 
+ */
+public class SimulatedUDP extends UDP {
+	
+	private SimulatedNetwork network;
+	private int myId;
+	private BlockingQueue<byte[]> inbox;
+	
+	public SimulatedUDP(SimulatedNetwork network, Host host, List<Host> hosts, PerfectLinks pl) {
+		
+		super(host.getIp(), host.getPort(), host.getId(), hosts, pl);
+		
+		this.network = network;
+		this.myId = host.getId();
+	}
+	
+	@Override
+	protected void open() throws IOException {
+		inbox = network.connect(myId);
+	}
+	
+	@Override
+	protected void transmit(ByteBuffer output, int destId) throws IOException {
+		network.send(myId, destId, Arrays.copyOf(output.array(), output.position()));
+	}
+	
+	@Override
+	protected void receive(int receiver) throws IOException {
+		
+		byte[] datagram;
+		try {
+			datagram = inbox.take();
+		}catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		
+		if (close || datagram == SimulatedNetwork.CLOSED) {
+			return;
+		}
+		
+		handleDatagram(ByteBuffer.wrap(datagram), null, receiver);
+	}
+	
+	@Override
+	protected void closeEndpoint() {
+		network.disconnect(myId, numOfReceivers);
+	}
+}
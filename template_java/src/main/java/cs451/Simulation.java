@@ -0,0 +1,94 @@
+package cs451;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ * Runs several lattice agreement processes in this JVM, connected by a SimulatedNetwork configured by the 
+ * cs451.sim properties, and stops them after the given time. Config files are those of the processes, assigned 
+ * to them in turn, and each process writes its decisions to procNN.output in the output directory, as with stress.py. 
+ * 
+ * Usage: java -cp da_proc.jar cs451.Simulation <processes> <seconds> <output directory> <config>... 
+ */
+public class Simulation {
+	
+	// Ports of the simulated hosts are never bound, they are only there for the host list to be complete. 
+	private static final int BASE_PORT = 11000;
+	
+	public static void main(String[] args) throws InterruptedException, IOException {
+		
+		if (args.length < 4) {
+			System.err.println("Usage: cs451.Simulation <processes> <seconds> <output directory> <config>...");
+			System.exit(1);
+		}
+		int numOfProcesses = Integer.parseInt(args[0]);
+		long durationMs = Long.parseLong(args[1]) * 1000;
+		File outputDir = new File(args[2]);
+		
+		List<Host> hosts = new ArrayList<Host>();
+		for (int id = 1 ; id <= numOfProcesses ; id++) {
+			Host host = new Host();
+			host.populate(Integer.toString(id), "127.0.0.1", Integer.toString(BASE_PORT + id));
+			hosts.add(host);
+		}
+		
+		SimulatedNetwork network = new SimulatedNetwork(numOfProcesses, Constants.SIM_SEED);
+		network.setLoss(Constants.SIM_LOSS);
+		network.setDelay(Constants.SIM_DELAY_MS, Constants.SIM_JITTER_MS);
+		network.setReorder(Constants.SIM_REORDER, Constants.SIM_REORDER_DELAY_MS);
+		
+		BufferedWriter[] outputs = new BufferedWriter[numOfProcesses];
+		LatticeAgreement[] processes = new LatticeAgreement[numOfProcesses];
+		for (int i = 0 ; i < numOfProcesses ; i++) {
+			HashSet<Integer>[] proposals = Main.readProposals(args[3 + i % (args.length - 3)]);
+			outputs[i] = new BufferedWriter(new FileWriter(new File(outputDir, String.format("proc%02d.output", i + 1))));
+			processes[i] = new LatticeAgreement(proposals, hosts, i + 1, outputs[i], network);
+		}
+		
+		long start = System.currentTimeMillis();
+		for (LatticeAgreement la : processes) {
+			la.propose(0);
+		}
+		
+		// Partition given as "<ids>@<start>-<end>", in milliseconds since the processes started proposing. 
+		if (!Constants.SIM_PARTITION.isEmpty()) {
+			String[] partition = Constants.SIM_PARTITION.split("@");
+			String[] ids = partition[0].split(",");
+			String[] window = partition[1].split("-");
+			int[] isolated = new int[ids.length];
+			for (int i = 0 ; i < ids.length ; i++) {
+				isolated[i] = Integer.parseInt(ids[i].trim());
+			}
+			
+			sleepUntil(start + Long.parseLong(window[0].trim()));
+			network.partition(isolated);
+			System.out.println("Partitioned " + partition[0]);
+			sleepUntil(start + Long.parseLong(window[1].trim()));
+			network.heal();
+			System.out.println("Healed " + partition[0]);
+		}
+		sleepUntil(start + durationMs);
+		
+		for (int i = 0 ; i < numOfProcesses ; i++) {
+			processes[i].stopProposing();
+			outputs[i].close();
+		}
+		network.close();
+		
+		System.out.println("Datagrams sent: " + network.getSent() + ", dropped: " + network.getDropped());
+		System.exit(0);
+	}
+	
+	private static void sleepUntil(long time) throws InterruptedException {
+		
+		long remaining = time - System.currentTimeMillis();
+		if (remaining > 0) {
+			Thread.sleep(remaining);
+		}
+	}
+}
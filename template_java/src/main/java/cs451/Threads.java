@@ -0,0 +1,60 @@
+package cs451;
+
+import java.lang.reflect.Method;
+
+/*
+ * Creates the threads of the protocol stack. With -Dcs451.virtualThreads=true and a Java 21 or later runtime, 
+ * they are virtual threads, otherwise platform threads. Virtual threads are created by reflection, so that the 
+ * project still builds for Java 11. 
+ */
+public class Threads {
+	
+	// Thread.ofVirtual, and the name and unstarted methods of Thread.Builder, or null if virtual threads are not used. 
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method UNSTARTED;
+	
+	static {
+		
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		if (Constants.VIRTUAL_THREADS) {
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name", String.class);
+				unstarted = builder.getMethod("unstarted", Runnable.class);
+			}catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads are not supported by this runtime, using platform threads ");
+				ofVirtual = null;
+			}
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+	
+	/*
+	 * Whether the threads created are virtual threads. 
+	 */
+	public static boolean isVirtual() {
+		return OF_VIRTUAL != null;
+	}
+	
+	/*
+	 * Creates a thread running the task, which still has to be started. 
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		
+		if (OF_VIRTUAL == null) {
+			return new Thread(task, name);
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+			return (Thread) UNSTARTED.invoke(builder, task);
+		}catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not create a virtual thread", e);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package cs451;
+
+import java.util.List;
+
+/*
+ * Hashed timing wheel holding the retransmission deadlines of the messages sent by Perfect Links. 
+ * Each slot covers one tick, and a message is stored in the slot of its deadline (its time field), so that each 
+ * tick only looks at the messages of one slot. Deadlines further away than one turn of the wheel stay in their 
+ * slot until the turn they are due. Messages are scheduled from any thread, but the wheel itself is only 
+ * touched by the thread calling expire. 
+ * 
+ * Slots hold the destination and id of each message packed in a long, and the message itself is looked up 
+ * in the outstanding table of its destination when the slot comes up. Messages acked in the meantime are 
+ * not in the table anymore and are simply dropped. Scheduled deadlines are buffered in primitive arrays until 
+ * the next call to expire, so that the wheel never holds a reference to a message and does not allocate. 
+ */
+public class TimerWheel {
+	
+	private static final int INITIAL_SLOT_CAPACITY = 16;
+	
+	private long tickMs;
+	private int mask;
+	private long[][] slots;
+	private int[] sizes;
+	private OutstandingTable[] outstanding;
+	// Messages scheduled since the last call to expire, and their deadlines. Guarded by the wheel. 
+	private long[] scheduledKeys;
+	private long[] scheduledTimes;
+	private int numOfScheduled;
+	// Arrays the scheduled messages are moved to while expire processes them. 
+	private long[] expiringKeys;
+	private long[] expiringTimes;
+	private long startTime;
+	// Last tick that has been processed. 
+	private long currentTick;
+	
+	public TimerWheel(int numOfSlots, long tickMs, long startTime, OutstandingTable[] outstanding) {
+		
+		// Round the number of slots to a power of two, so that the slot of a tick is found with a mask. 
+		int size = Integer.highestOneBit(Math.max(numOfSlots - 1, 1)) << 1;
+		
+		this.tickMs = tickMs;
+		this.mask = size - 1;
+		this.startTime = startTime;
+		this.currentTick = 0;
+		this.outstanding = outstanding;
+		
+		slots = new long[size][INITIAL_SLOT_CAPACITY];
+		sizes = new int[size];
+		scheduledKeys = new long[INITIAL_SLOT_CAPACITY];
+		scheduledTimes = new long[INITIAL_SLOT_CAPACITY];
+		expiringKeys = new long[INITIAL_SLOT_CAPACITY];
+		expiringTimes = new long[INITIAL_SLOT_CAPACITY];
+	}
+	
+	/*
+	 * Schedules the message for its deadline. Can be called from any thread. 
+	 */
+	public synchronized void schedule(Message mess) {
+		
+		if (numOfScheduled == scheduledKeys.length) {
+			long[] keys = new long[scheduledKeys.length * 2];
+			long[] times = new long[scheduledTimes.length * 2];
+			System.arraycopy(scheduledKeys, 0, keys, 0, numOfScheduled);
+			System.arraycopy(scheduledTimes, 0, times, 0, numOfScheduled);
+			scheduledKeys = keys;
+			scheduledTimes = times;
+		}
+		scheduledKeys[numOfScheduled] = ((long) mess.getDestination() << 32) | (mess.getMsgId() & 0xFFFFFFFFL);
+		scheduledTimes[numOfScheduled] = mess.getTime();
+		numOfScheduled++;
+	}
+	
+	/*
+	 * Processes all ticks up to the given time, adding every message that is due and not acked yet to the list. 
+	 * The caller owns one reference to each message added. 
+	 */
+	public void expire(long currentTime, List<Message> due) {
+		
+		// Swap the scheduled messages with the spare arrays, so that other threads can keep scheduling meanwhile. 
+		int numOfExpiring;
+		synchronized (this) {
+			long[] keys = expiringKeys;
+			long[] times = expiringTimes;
+			expiringKeys = scheduledKeys;
+			expiringTimes = scheduledTimes;
+			scheduledKeys = keys;
+			scheduledTimes = times;
+			numOfExpiring = numOfScheduled;
+			numOfScheduled = 0;
+		}
+		
+		// Messages whose deadline falls in an already processed tick go in the next one. 
+		for (int i = 0 ; i < numOfExpiring ; i++) {
+			long tick = Math.max(tickOf(expiringTimes[i]), currentTick + 1);
+			add((int) (tick & mask), expiringKeys[i]);
+		}
+		
+		long lastTick = tickOf(currentTime);
+		while (currentTick < lastTick) {
+			currentTick++;
+			int slot = (int) (currentTick & mask);
+			long[] keys = slots[slot];
+			
+			// Compact the slot in place, keeping only the messages due in a later turn of the wheel. 
+			int kept = 0;
+			for (int i = 0 ; i < sizes[slot] ; i++) {
+				Message mess = outstanding[(int) (keys[i] >>> 32) - 1].retain((int) keys[i]);
+				if (mess == null) {
+					continue;
+				}
+				if (tickOf(mess.getTime()) <= currentTick) {
+					due.add(mess);
+				}else {
+					keys[kept++] = keys[i];
+					mess.release();
+				}
+			}
+			sizes[slot] = kept;
+		}
+	}
+	
+	private void add(int slot, long key) {
+		
+		if (sizes[slot] == slots[slot].length) {
+			long[] keys = new long[slots[slot].length * 2];
+			System.arraycopy(slots[slot], 0, keys, 0, sizes[slot]);
+			slots[slot] = keys;
+		}
+		slots[slot][sizes[slot]++] = key;
+	}
+	
+	private long tickOf(long time) {
+		return (time - startTime) / tickMs;
+	}
+}
@@ -0,0 +1,48 @@
+package cs451;
+
+import java.util.List;
+
+/*
+ * Transport Perfect Links sends its messages with and receives them from. UDP and NioUDP go through the network, 
+ * SimulatedNetwork connects processes running in the same JVM. Received messages and acks are handed to the 
+ * Perfect Links instance the transport was created for. 
+ */
+public interface Transport {
+	
+	/*
+	 * Starts sending and receiving. 
+	 */
+	void start();
+	
+	/*
+	 * Queues a message for sending. The caller hands one reference to the message over to the transport, 
+	 * which releases it once the message has been sent. 
+	 */
+	void send(Message mess);
+	
+	/*
+	 * Stops the transport, and waits for its threads to finish. 
+	 */
+	void closeSocket();
+	
+	/*
+	 * Creates the transport of a process. 
+	 */
+	interface Factory {
+		
+		Transport create(Host host, List<Host> hosts, PerfectLinks pl);
+	}
+	
+	/*
+	 * Factory of the transport selected by -Dcs451.transport, "udp" or "nio". 
+	 */
+	static Factory configured() {
+		
+		return (host, hosts, pl) -> {
+			if (Constants.TRANSPORT.equals("nio")) {
+				return new NioUDP(host.getIp(), host.getPort(), host.getId(), hosts, pl);
+			}
+			return new UDP(host.getIp(), host.getPort(), host.getId(), hosts, pl);
+		};
+	}
+}
@@ -1,88 +1,271 @@
 package cs451;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
-public class UDP {
+/*
+ * Class implementing the transport used by Perfect Links, on top of a blocking DatagramSocket. 
+ * It batches messages into datagrams and piggybacks acks on them. Subclasses can replace the socket 
+ * by overriding the methods that do the actual I/O. 
+ * 
+ * Datagrams are received by several threads. When the platform supports SO_REUSEPORT, each of them has its own 
+ * socket bound to the same port, and the kernel hashes each source address to one socket, so that all datagrams 
+ * of a source are still received by a single thread, in order. Otherwise they all read from the same socket. 
+ */
+public class UDP implements Transport {
 	// The size of the buffer, 65000, as it generally is in UDP. 
-	private static final int BUFFER_SIZE = 65000;
+	protected static final int BUFFER_SIZE = 65000;
+	// Maximum number of messages the sender takes from the queue at once, so that messages queued in the 
+	// meantime, and acks that became due, do not wait for a large batch to be sent. 
+	private static final int MAX_MESSAGES_PER_ROUND = 1024;
 
-	private DatagramSocket socket;
-	private DatagramPacket inputDatagram;
+	// Queued when closing, so that the send thread does not wait for messages anymore. 
+	private static final Message CLOSED = new Message(0, (byte)0, (byte)0, (byte)0, null, false);
+	
+	// Sockets bound to the port of this process, messages are sent from the first one. 
+	private DatagramSocket[] sockets;
+	// Per receiver thread, the datagram it receives in and a buffer wrapping it. 
+	private DatagramPacket[] inputDatagrams;
+	private ByteBuffer[] inputs;
+	// Per receiver thread, the frame datagrams are decoded in. 
+	private WireFormat.Frame[] frames;
+	private volatile boolean versionMismatch;
 	private DatagramPacket[] outputDatagrams;
 	private PerfectLinks pl;
-	private BlockingQueue<Message> sendQueue;
-	private ByteBuffer input;
-	private ByteBuffer output;
-	private volatile boolean close;
+	private MessagePool messages;
+	private int myId;
+	private SendScheduler sendQueue;
+	// One output buffer per destination, in which the messages for that destination are batched. 
+	private ByteBuffer[] outputs;
+	// Size of the datagram header each output buffer starts with. 
+	private int headerSize;
+	protected String ip;
+	protected int port;
+	protected InetSocketAddress[] addresses;
+	protected volatile boolean close;
+	protected int numOfReceivers;
 	private Thread sender;
-	private Thread receiver;
+	private Thread[] receivers;
+	private LongAdder datagramsOut;
+	private LongAdder bytesOut;
+	private LongAdder acksOut;
+	private LongAdder datagramsIn;
+	private LongAdder bytesIn;
+	private LongAdder datagramsMalformed;
+	
+	public UDP(String ip, int port, int myId, List<Host> hosts, PerfectLinks pl) {
+		
+		this.ip = ip;
+		this.port = port;
+		this.pl = pl;
+		this.messages = pl.getMessagePool();
+		this.myId = myId;
+		this.numOfReceivers = Math.max(Constants.RECEIVE_THREADS, 1);
+		
+		addresses = new InetSocketAddress[hosts.size()];
+		for (Host h : hosts) {
+			addresses[h.getId()-1] = new InetSocketAddress(h.getIp(), h.getPort());
+		}
+		
+		sendQueue = new SendScheduler(Constants.SEND_QUEUE_CAPACITY, Constants.CONTROL_WEIGHT, Constants.PROPOSAL_WEIGHT, Constants.RETRANSMISSION_WEIGHT);
+		
+		Metrics metrics = pl.getMetrics();
+		datagramsOut = metrics.counter("udp.datagramsOut");
+		bytesOut = metrics.counter("udp.bytesOut");
+		acksOut = metrics.counter("udp.acksOut");
+		datagramsIn = metrics.counter("udp.datagramsIn");
+		bytesIn = metrics.counter("udp.bytesIn");
+		datagramsMalformed = metrics.counter("udp.datagramsMalformed");
+		metrics.gauge("udp.sendQueue.control", () -> sendQueue.size(SendScheduler.CONTROL));
+		metrics.gauge("udp.sendQueue.proposal", () -> sendQueue.size(SendScheduler.PROPOSAL));
+		metrics.gauge("udp.sendQueue.retransmission", () -> sendQueue.size(SendScheduler.RETRANSMISSION));
+	}
 	
-	public UDP(String ip, int port, List<Host> hosts, PerfectLinks pl) {
+	/*
+	 * Opens the sockets and starts the sender and receiver threads. 
+	 */
+	public void start() {
 		
 		try {
-			this.socket = new DatagramSocket(port);
-		}catch (SocketException e) {
+			open();
+		}catch (IOException e) {
 			System.out.println("Error when initializing socket ");
 			e.printStackTrace();
 		}
 		
-		this.pl = pl;
+		outputs = new ByteBuffer[addresses.length];
+		for (int i = 0 ; i < addresses.length ; i++) {
+			outputs[i] = allocate(BUFFER_SIZE);
+			WireFormat.putHeader(outputs[i], myId);
+			headerSize = outputs[i].position();
+		}
+		frames = new WireFormat.Frame[numOfReceivers];
+		for (int i = 0 ; i < numOfReceivers ; i++) {
+			frames[i] = new WireFormat.Frame();
+		}
 		
-		inputDatagram = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE, new InetSocketAddress(ip, port));
-		input = ByteBuffer.wrap(inputDatagram.getData(), 0, BUFFER_SIZE);
+		startSendThread();
+		startReceiveThreads();
+	}
+	
+	/*
+	 * Queues a message for sending, blocking while the queue of its class is full. The caller hands one reference to 
+	 * the message over to the transport, which releases it once the message has been written to a datagram. 
+	 */
+	public void send(Message mess) {
 		
-		output = ByteBuffer.allocate(BUFFER_SIZE);
-		outputDatagrams = new DatagramPacket[hosts.size()];
-		for (Host h : hosts) {
-			outputDatagrams[h.getId()-1] = new DatagramPacket(output.array(), 0, new InetSocketAddress(h.getIp(), h.getPort()));
+		try {
+			sendQueue.put(mess);
+		}catch (InterruptedException e) {
+			mess.release();
+			e.printStackTrace();
 		}
+	}
+	
+	/*
+	 * Opens the sockets this transport sends and receives on. 
+	 */
+	protected void open() throws IOException {
 		
-		sendQueue = new LinkedBlockingQueue<>();
+		DatagramSocket first = new DatagramSocket(null);
+		sockets = new DatagramSocket[numOfSockets(first.supportedOptions())];
+		sockets[0] = first;
+		for (int i = 1 ; i < sockets.length ; i++) {
+			sockets[i] = new DatagramSocket(null);
+		}
+		for (DatagramSocket socket : sockets) {
+			if (sockets.length > 1) {
+				socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			socket.bind(new InetSocketAddress(port));
+		}
 		
-		startSendThread();
-		startReceiveThread();
+		inputDatagrams = new DatagramPacket[numOfReceivers];
+		inputs = new ByteBuffer[numOfReceivers];
+		for (int i = 0 ; i < numOfReceivers ; i++) {
+			inputDatagrams[i] = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE, new InetSocketAddress(ip, port));
+			inputs[i] = ByteBuffer.wrap(inputDatagrams[i].getData());
+		}
+		outputDatagrams = new DatagramPacket[addresses.length];
+		for (int i = 0 ; i < addresses.length ; i++) {
+			outputDatagrams[i] = new DatagramPacket(new byte[0], 0, addresses[i]);
+		}
 	}
 	
-	public void send(Message mess) {
-		sendQueue.add(mess);
+	/*
+	 * Number of sockets to open, given the options they support: one per receiver thread if they can share 
+	 * the port, otherwise a single one all receiver threads read from. 
+	 */
+	protected int numOfSockets(Set<SocketOption<?>> supportedOptions) {
+		return supportedOptions.contains(StandardSocketOptions.SO_REUSEPORT) ? numOfReceivers : 1;
+	}
+	
+	/*
+	 * Allocates a buffer in which outgoing datagrams are built. 
+	 */
+	protected ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocate(capacity);
+	}
+	
+	/*
+	 * Sends the content of the buffer, from its start up to its position, to the given destination. 
+	 */
+	protected void transmit(ByteBuffer output, int destId) throws IOException {
+		
+		DatagramPacket packet = outputDatagrams[destId - 1];
+		packet.setData(output.array(), 0, output.position());
+		sockets[0].send(packet);
+	}
+	
+	/*
+	 * Called by the given receiver thread. Blocks until a datagram is received, and hands it to handleDatagram. 
+	 */
+	protected void receive(int receiver) throws IOException {
+		
+		DatagramPacket inputDatagram = inputDatagrams[receiver];
+		sockets[receiver % sockets.length].receive(inputDatagram);
+		
+		if (close) {
+			return;
+		}
+		
+		ByteBuffer input = inputs[receiver];
+		input.limit(inputDatagram.getOffset() + inputDatagram.getLength());
+		input.position(inputDatagram.getOffset());
+		handleDatagram(input, null, receiver);
+	}
+	
+	/*
+	 * Closes the sockets, unblocking the receiver threads. 
+	 */
+	protected void closeEndpoint() {
+		
+		for (DatagramSocket socket : sockets) {
+			socket.close();
+		}
 	}
 	
 	private void startSendThread() {
 		
-		sender = new Thread(() -> {
+		sender = Threads.newThread("udp-sender", () -> {
+			List<Message> batch = new ArrayList<>();
 			while(!close) {
 				try {
-					Message mess = sendQueue.take();
+					// Wait for the first message at most for the delayed ack timeout, then take what else is already 
+					// queued, so that messages for the same destination can share a datagram. 
+					sendQueue.drain(batch, MAX_MESSAGES_PER_ROUND, Constants.DELAYED_ACK_MS);
 					
 					if (close) {
 						return;
 					}
+					
+					// Acks that waited long enough are written first, they go out at the start of the first datagram 
+					// to their destination. The ones that did not can still be piggybacked on messages below. 
+					long ackDeadline = System.currentTimeMillis() - Constants.DELAYED_ACK_MS;
+					for (int destId = 1 ; destId <= outputs.length ; destId++) {
+						if (!pl.takeAck(destId, ackDeadline)) {
+							continue;
+						}
+						int watermark = pl.ackWatermark(destId);
+						acksOut.increment();
+						WireFormat.putAck(outputs[destId - 1], watermark, pl.selectiveAck(destId, watermark));
+					}
 				
-					output.clear();
-					output.putInt(mess.getMsgId());
-					output.put((byte) mess.getSource());
-					output.put((byte) mess.getType());
-					output.put((byte) mess.getDestination());
-					output.put((byte) (mess.isAck() ? 1 : 0));
-					output.put(mess.getData());
+					// Indexed loop, so that no iterator is allocated for each batch. 
+					for (int i = 0 ; i < batch.size() ; i++) {
+						Message mess = batch.get(i);
+						int destId = mess.getDestination();
+						ByteBuffer output = outputs[destId - 1];
+						
+						// Flush the datagram built so far if this message does not fit in the batch anymore. 
+						int frameSize = WireFormat.maxFrameSize(mess.getData() == null ? 0 : mess.getData().remaining());
+						if (output.position() > headerSize && output.position() + frameSize > Constants.BATCH_SIZE) {
+							flush(destId);
+						}
+						
+						// Piggyback the ack owed to the destination, if there is one. 
+						boolean piggyback = pl.takeAck(destId, Long.MAX_VALUE);
+						int watermark = piggyback ? pl.ackWatermark(destId) : 0;
+						long sack = piggyback ? pl.selectiveAck(destId, watermark) : 0;
+						WireFormat.putMessage(output, mess.getMsgId(), mess.getType(), mess.getData(), piggyback, watermark, sack);
+						mess.release();
+					}
+					batch.clear();
 					
-					// Check if message is an ack 
-					// and return it to the source (i.e. the node that sent the message for which the ack is sent).
-					int destId =  mess.getDestination();
-					if (mess.isAck()) {
-						destId = mess.getSource();
+					for (int destId = 1 ; destId <= outputs.length ; destId++) {
+						if (outputs[destId - 1].position() > headerSize) {
+							flush(destId);
+						}
 					}
-					DatagramPacket packet = outputDatagrams[destId - 1];
-					packet.setData(output.array(), 0, output.position());
-					socket.send(packet);
 					
 				}catch (Exception e){
 					e.printStackTrace();
@@ -94,53 +277,108 @@ public class UDP {
 		sender.start();
 	}
 	
-	private void startReceiveThread() {
+	/*
+	 * Sends the datagram accumulated for the given destination and resets its buffer. 
+	 */
+	private void flush(int destId) throws IOException {
 		
-		receiver = new Thread(() -> {
-			while (!close) {
-				try {
-					socket.receive(inputDatagram);
-					
-					if (close) {
+		ByteBuffer output = outputs[destId - 1];
+		transmit(output, destId);
+		datagramsOut.increment();
+		bytesOut.add(output.position());
+		Events.datagramSent(destId, output.position());
+		output.clear();
+		WireFormat.putHeader(output, myId);
+	}
+	
+	private void startReceiveThreads() {
+		
+		receivers = new Thread[numOfReceivers];
+		for (int i = 0 ; i < numOfReceivers ; i++) {
+			final int tmp = i;
+			receivers[i] = Threads.newThread("udp-receiver-" + i, () -> {
+				while (!close) {
+					try {
+						receive(tmp);
+					}catch (Exception e) {
+						e.printStackTrace();
 						return;
 					}
-					
-					input = ByteBuffer.wrap(inputDatagram.getData(), inputDatagram.getOffset(), inputDatagram.getLength());
-					input.clear();
-
-					int messageId = input.getInt();
-					byte source = input.get();
-					byte type = input.get();
-					byte destination = input.get();
-					boolean ack = input.get() == (byte) 1;
-					byte[] data = Arrays.copyOfRange(input.array(), 8, inputDatagram.getLength());
-
-					pl.deliver(new Message(messageId, source, type, destination, data, ack));
-					
-				}catch (Exception e) {
-					e.printStackTrace();
-					return;
 				}
-			}
-		});
+			});
+			receivers[i].start();
+		}
+	}
+	
+	/*
+	 * Called by the given receiver thread to unpack all frames of a datagram, between the position and the limit 
+	 * of the buffer, as encoded by WireFormat. A datagram can carry several messages. If the datagram lives in a pooled buffer, 
+	 * payloads are handed up as views of it, each holding a reference to the buffer until the message is released. 
+	 * Otherwise they are copied. Messages are taken from the pool, and Perfect Links owns them once delivered. 
+	 * A datagram with a malformed header or from an unknown source is dropped, and so is the rest of one from its 
+	 * first malformed frame on, the frames before it being well formed. Both are counted in udp.datagramsMalformed. 
+	 */
+	protected void handleDatagram(ByteBuffer input, BufferPool.Buffer pooled, int receiver) {
 
-		receiver.start();
+		int size = input.remaining();
+		datagramsIn.increment();
+		bytesIn.add(size);
+		int source = WireFormat.getHeader(input);
+		if (source == WireFormat.UNKNOWN_VERSION) {
+			// Reported once, a peer running another version keeps sending such datagrams. 
+			if (!versionMismatch) {
+				versionMismatch = true;
+				System.out.println("Dropping datagrams of an unknown wire format version ");
+			}
+			return;
+		}
+		if (source < 1 || source > addresses.length) {
+			datagramsMalformed.increment();
+			return;
+		}
+		Events.datagramReceived(source, size);
+		
+		WireFormat.Frame frame = frames[receiver];
+		while (input.hasRemaining()) {
+			if (!WireFormat.getFrame(input, frame)) {
+				datagramsMalformed.increment();
+				return;
+			}
+			if (frame.hasAck()) {
+				pl.deliverAck((byte) source, frame.getWatermark(), frame.getSack());
+			}
+			if (!frame.hasMessage()) {
+				continue;
+			}
+			
+			Message mess = messages.acquire();
+			mess.set(frame.getMsgId(), (byte) source, (byte) frame.getType(), (byte) myId, null);
+			if (pooled == null) {
+				mess.copy(input, frame.getOffset(), frame.getLength());
+			}else {
+				mess.wrap(pooled, frame.getOffset(), frame.getLength());
+			}
+			
+			pl.deliver(mess);
+		}
 	}
 	
 	public void closeSocket() {
-
-        socket.close();
+        
         close = true;
+        closeEndpoint();
         
-        try {
-            receiver.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        for (Thread receiver : receivers) {
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
         
         try {
        	 // Adding an empty message in order for the socket to not block forever.
-           sendQueue.add(new Message(0, (byte)0, (byte)0, (byte)0, null, false));
+           sendQueue.offer(CLOSED);
            sender.join();
        } catch (InterruptedException e) {
            e.printStackTrace();
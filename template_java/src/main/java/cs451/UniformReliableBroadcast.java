@@ -3,20 +3,92 @@ package cs451;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * Class implementing the Uniform Reliable broadcast. 
+ * 
+ * By default, messages are not relayed: the source sends each of them once to every process, and processes then 
+ * only tell each other which messages they have. They do so with a vector holding, for each source, the id up to 
+ * which they have all of its messages, and only the sources that changed since the last one are sent, at most every 
+ * cs451.urbSeenIntervalMs. A single vector thus covers any number of messages. A message is delivered once the 
+ * vectors show that a majority of the processes have it, and a process missing messages that others have pulls 
+ * them from one of those, which only happens when the source crashed while broadcasting them. Messages are kept 
+ * until the vectors of all processes cover them, so that they can still be pulled. 
+ * 
+ * With -Dcs451.urbMode=relay, every process instead relays each message it receives for the first time to all 
+ * others, and delivers it once a majority relayed it, which costs N squared messages with the payload per broadcast. 
+ * 
+ * In both modes, a process broadcasts as fast as it can while fewer than cs451.urbCredits of its own messages 
+ * are not delivered yet, and waits for deliveries otherwise. Deliveries need a majority to have the messages, so 
+ * the broadcast slows down when the majority falls behind, but not for a few slow or crashed processes. 
+ * 
+ * Messages are never sent by waiting for room in the window of a destination, a process that stopped acking 
+ * would block the sender forever. Messages to such a process wait in its backlog until it acks again instead. 
+ * Vectors and pulls are not queued behind a full backlog, since they are sent again and again: in the default 
+ * mode, a process that is backlogged is sent the whole vector of this process once it is not anymore, and 
+ * a pull from it is made again later. 
  */
 
-public class UniformReliableBroadcast {
+public class UniformReliableBroadcast implements Deliverer {
+	
+	// Types of the messages at this level. Messages carry the id of their source and their id, then the payload. 
+	private static final byte DATA = 0;
+	// Pairs of a source and the id up to which the sender has all of its messages. 
+	private static final byte SEEN = 1;
+	// A source and a range of ids of its messages, which the sender wants to be sent. 
+	private static final byte PULL = 2;
+	private static final int HEADER_SIZE = 5;
+	// Maximum number of messages a single pull asks for. 
+	private static final int PULL_BATCH = 1024;
+	
+	// Number of message ids after the watermark of each source for which deliveries are tracked. 
+	private static final int DELIVERED_WINDOW = 1 << 16;
 	
 	private List<Host> hosts;
 	public PerfectLinks pl;
 	private FifoBroadcast fb;
-	private byte[][] ack;
-	private boolean[][] delivered;
+	private boolean relay;
+	
+	// Per source, the number of copies received of each message that is not delivered yet. 
+	private HashMap<Integer, Integer>[] ack;
+	// Per source, the ids of the messages delivered so far. 
+	private DeliveredWindow[] delivered;
+	// Per source, delivered messages that were too far ahead of the window to be recorded in it yet. 
+	private HashSet<Integer>[] deferred;
+	
+	// Per source, the messages kept, header included, by id. 
+	private List<HashMap<Integer, ByteBuffer>> messages;
+	private int numOfKept;
+	// Number of messages this process broadcast, and of those that were delivered. 
+	private volatile int numOfBroadcast;
+	private volatile int numOfOwnDelivered;
+	// Per process and source, the id up to which the process has all the messages of the source, as of the last 
+	// vector received from it. The row of this process is its own vector. 
+	private int[][] seen;
+	// Per source, the id up to which its messages were delivered, and the one up to which they were dropped. 
+	private int[] deliveredUpTo;
+	private int[] droppedUpTo;
+	// Per source, whether its entry in the vector of this process changed since the vector was last sent. 
+	private boolean[] changed;
+	// Per source, the time since which other processes have messages of it this process does not, or 0, and the 
+	// time they were last pulled at. 
+	private long[] missingSince;
+	private long[] pulledAt;
+	private Random random;
+	
+	private Thread gossiper;
+	private volatile boolean stop;
+	
+	private LongAdder vectorsSent;
+	private LongAdder pulls;
+	private LongAdder pulledMessagesSent;
 	
 	private int myId;
 	private int m;
@@ -30,59 +102,436 @@ public class UniformReliableBroadcast {
 		this.bw = bw;
 		this.m = m;
 		this.fb = fb;
+		this.relay = Constants.URB_MODE.equals("relay");
 		
-		ack = new byte[hosts.size()][m];
+		int numOfHosts = hosts.size();
+		ack = new HashMap[numOfHosts];
+		delivered = new DeliveredWindow[numOfHosts];
+		deferred = new HashSet[numOfHosts];
+		messages = new ArrayList<HashMap<Integer, ByteBuffer>>(numOfHosts);
+		for (int i = 0 ; i < numOfHosts ; i++) {
+			ack[i] = new HashMap<Integer, Integer>();
+			delivered[i] = new DeliveredWindow(DELIVERED_WINDOW);
+			deferred[i] = new HashSet<Integer>();
+			messages.add(new HashMap<Integer, ByteBuffer>());
+		}
+		numOfKept = 0;
+		numOfBroadcast = 0;
+		numOfOwnDelivered = 0;
+		seen = new int[numOfHosts][numOfHosts];
+		deliveredUpTo = new int[numOfHosts];
+		droppedUpTo = new int[numOfHosts];
+		changed = new boolean[numOfHosts];
+		missingSince = new long[numOfHosts];
+		pulledAt = new long[numOfHosts];
+		random = new Random();
+		stop = false;
 		
-		delivered = new boolean[hosts.size()][m];
+		// Messages may be delivered as soon as the links are up, they wait for the metrics to be set up. 
+		synchronized (this) {
+			pl = new PerfectLinks(hosts, id, this);
+			Metrics metrics = pl.getMetrics();
+			vectorsSent = metrics.counter("urb.vectorsSent");
+			pulls = metrics.counter("urb.pulls");
+			pulledMessagesSent = metrics.counter("urb.pulledMessagesSent");
+			metrics.gauge("urb.messagesKept", () -> numOfKept);
+			metrics.gauge("urb.broadcastsInFlight", () -> numOfBroadcast - numOfOwnDelivered);
+		}
 		
-//		pl = new PerfectLinks(hosts, id, m, this);
+		if (!relay) {
+			startGossipThread();
+		}
 	}
 	
 	/*
 	 * Broadcasts all messages that this process has to send. This is done by sending each message to each
-	 * other process in the system, via the underlying Perfect Links layer. 
+	 * other process in the system, via the underlying Perfect Links layer. Each message takes a credit, 
+	 * which comes back once it is delivered. 
 	 */
 	public void broadcast() {
 		
 
 		for (int i = 1 ; i <= m ; i++) {
 			try {
-				Thread.sleep(hosts.size()*15);
+				awaitCredit(i);
 			}catch(InterruptedException e) {
 				e.printStackTrace();
+				return;
+			}
+			if (stop) {
+				return;
 			}
 			try {
        			bw.write("b " + i + "\n");
        		}catch(IOException e) {
        			e.printStackTrace();
        		}
-			for (Host h : hosts) {
-				// The payload is just an integer, however this can be changed for whatever payload is needed.
-				pl.send(i, (byte)myId, (byte)myId, (byte)h.getId(), null);
-			}
+			// Link level message ids are assigned per link, so the original source and message id travel in the payload. 
+			// The payload is empty, however this can be changed for whatever payload is needed. 
+			ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE).put((byte)myId).putInt(i).flip();
+			numOfBroadcast = i;
+			pl.broadcastNonBlocking(DATA, data);
         }
 	}
 	
 	/*
-	 * Delivery of a message at this level of communication. 
+	 * Waits until the message with the given id can be broadcast, i.e. until the ones at least cs451.urbCredits 
+	 * before it are delivered, or until stopped. 
+	 */
+	private synchronized void awaitCredit(int msgId) throws InterruptedException {
+		
+		while (msgId - numOfOwnDelivered > Constants.URB_CREDITS && !stop) {
+			wait();
+		}
+	}
+	
+	/*
+	 * Returns credits to the broadcast, once messages of this process are delivered. 
+	 */
+	private void ownDelivered(int numOfDelivered) {
+		
+		numOfOwnDelivered = numOfDelivered;
+		notifyAll();
+	}
+	
+	/*
+	 * Delivery of a message at this level of communication. The messages it leads to send, relays and pulled 
+	 * messages, are collected under the lock and sent once it is released. 
+	 */
+	@Override
+	public void deliver(byte type, ByteBuffer data, byte source) {
+		
+		if (relay) {
+			ByteBuffer relayed;
+			synchronized (this) {
+				relayed = deliverRelayed(data);
+			}
+			if (relayed != null) {
+				pl.broadcastNonBlocking(DATA, relayed);
+			}
+			return;
+		}
+		
+		if (type == PULL) {
+			List<ByteBuffer> pulled;
+			synchronized (this) {
+				pulled = deliverPull(data);
+			}
+			for (ByteBuffer message : pulled) {
+				pl.sendNonBlocking(DATA, source, message);
+				pulledMessagesSent.increment();
+			}
+			return;
+		}
+		
+		synchronized (this) {
+			switch(type) {
+			case DATA:
+				deliverData(data);
+				break;
+			case SEEN:
+				deliverSeen(data, source);
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * A message, from its source or pulled from another process. It is kept, and extends the vector of this 
+	 * process if it fills the gap after the id the source is covered up to. 
+	 */
+	private void deliverData(ByteBuffer data) {
+		
+		ByteBuffer buffer = data.duplicate();
+		int source = buffer.get();
+		int msgId = buffer.getInt();
+		
+		int[] own = seen[myId-1];
+		if (msgId <= own[source-1] || messages.get(source-1).containsKey(msgId)) {
+			return;
+		}
+		messages.get(source-1).put(msgId, copy(data));
+		numOfKept++;
+		
+		int upTo = own[source-1];
+		while (messages.get(source-1).containsKey(upTo + 1)) {
+			upTo++;
+		}
+		if (upTo != own[source-1]) {
+			own[source-1] = upTo;
+			changed[source-1] = true;
+			deliverUpTo(source);
+		}
+	}
+	
+	/*
+	 * Entries of the vector of another process. They are only ever higher than the previous ones, but perfect 
+	 * links may deliver vectors out of order, so older ones are ignored. 
+	 */
+	private void deliverSeen(ByteBuffer data, byte process) {
+		
+		ByteBuffer buffer = data.duplicate();
+		while (buffer.hasRemaining()) {
+			int source = buffer.get();
+			int upTo = buffer.getInt();
+			if (upTo > seen[process-1][source-1]) {
+				seen[process-1][source-1] = upTo;
+				deliverUpTo(source);
+			}
+		}
+	}
+	
+	/*
+	 * Returns the asked messages this process still has, to be sent to the process that pulled them. The messages 
+	 * it misses were not dropped, since they are only once every process has them. 
+	 */
+	private List<ByteBuffer> deliverPull(ByteBuffer data) {
+		
+		ByteBuffer buffer = data.duplicate();
+		int source = buffer.get();
+		int from = Math.max(buffer.getInt(), droppedUpTo[source-1] + 1);
+		int to = Math.min(buffer.getInt(), seen[myId-1][source-1]);
+		List<ByteBuffer> pulled = new ArrayList<ByteBuffer>(Math.max(to - from + 1, 0));
+		for (int msgId = from ; msgId <= to ; msgId++) {
+			// Kept messages are never written to, the copy can be read once the lock is released. 
+			pulled.add(messages.get(source-1).get(msgId).duplicate());
+		}
+		return pulled;
+	}
+	
+	/*
+	 * Delivers, in order, the messages of the source this process has and that a majority of the processes have, 
+	 * then drops the ones all processes have. 
 	 */
-	public void deliver(int msgId, byte source, byte relay, byte[] data) {
+	private void deliverUpTo(int source) {
 		
-		ack[source-1][msgId-1]++;
+		int upTo = Math.min(majorityUpTo(source), seen[myId-1][source-1]);
+		for (int msgId = deliveredUpTo[source-1] + 1 ; msgId <= upTo ; msgId++) {
+			ByteBuffer payload = messages.get(source-1).get(msgId).duplicate().position(HEADER_SIZE).slice();
+			fb.deliver(msgId, (byte)source, payload);
+		}
+		if (upTo > deliveredUpTo[source-1]) {
+			deliveredUpTo[source-1] = upTo;
+			if (source == myId) {
+				ownDelivered(upTo);
+			}
+		}
+		
+		int dropUpTo = deliveredUpTo[source-1];
+		for (int[] vector : seen) {
+			dropUpTo = Math.min(dropUpTo, vector[source-1]);
+		}
+		for (int msgId = droppedUpTo[source-1] + 1 ; msgId <= dropUpTo ; msgId++) {
+			messages.get(source-1).remove(msgId);
+			numOfKept--;
+		}
+		droppedUpTo[source-1] = Math.max(droppedUpTo[source-1], dropUpTo);
+	}
+	
+	/*
+	 * Highest id up to which a majority of the processes have all the messages of the source. 
+	 */
+	private int majorityUpTo(int source) {
+		
+		int[] column = new int[seen.length];
+		for (int i = 0 ; i < seen.length ; i++) {
+			column[i] = seen[i][source-1];
+		}
+		Arrays.sort(column);
+		return column[seen.length - 1 - seen.length/2];
+	}
+	
+	/*
+	 * Delivery of a message in relay mode. It is delivered once received from a majority of the processes, and 
+	 * returned to be relayed to all of them the first time it is received, or null. 
+	 */
+	private ByteBuffer deliverRelayed(ByteBuffer data) {
+		
+		ByteBuffer buffer = data.duplicate();
+		byte source = buffer.get();
+		int msgId = buffer.getInt();
+		
+		if (delivered[source-1].isDelivered(msgId) || deferred[source-1].contains(msgId)) {
+			return null;
+		}
+		
+		int count = ack[source-1].merge(msgId, 1, Integer::sum);
+		
+		ByteBuffer relayed = null;
+		if (count == 1 && source != myId) {
+			relayed = copy(data);
+		}
+		
+		if (count > hosts.size()/2) {
+			fb.deliver(msgId, source, buffer.slice());
+			if (source == myId) {
+				ownDelivered(numOfOwnDelivered + 1);
+			}
+			// The copies of a delivered message do not need to be counted anymore. 
+			ack[source-1].remove(msgId);
+			if (delivered[source-1].add(msgId)) {
+				// The window moved, deferred messages might fit in it now. 
+				deferred[source-1].removeIf(x -> delivered[source-1].add(x));
+			}else {
+				deferred[source-1].add(msgId);
+			}
+		}
+		return relayed;
+	}
+	
+	/*
+	 * The data delivered by perfect links goes back to its pool once delivered, what is kept or relayed is copied. 
+	 */
+	private static ByteBuffer copy(ByteBuffer data) {
+		return ByteBuffer.allocate(data.remaining()).put(data.duplicate()).flip();
+	}
+	
+	/*
+	 * Sends the entries of the vector of this process that changed to the other processes, and pulls missing 
+	 * messages, at regular intervals. A process the entries were not sent to, because it was backlogged, is sent 
+	 * the whole vector once it is not anymore. Messages are built under the lock and sent outside of it. 
+	 */
+	private void startGossipThread() {
 		
-		if (ack[source-1][msgId-1] == 1 && source != myId) {
-			for (Host h : hosts) {
-				pl.send(msgId, source, (byte)myId, (byte)h.getId(), data);
+		gossiper = Threads.newThread("urb-gossiper", () -> {
+			
+			List<ByteBuffer> pullRequests = new ArrayList<ByteBuffer>();
+			List<Byte> pullDestinations = new ArrayList<Byte>();
+			// Per process, whether some entries were not sent to it. 
+			boolean[] stale = new boolean[hosts.size()];
+			boolean anyStale = false;
+			while (!stop) {
+				
+				try {
+					Thread.sleep(Constants.URB_SEEN_INTERVAL_MS);
+				}catch (InterruptedException e) {
+					return;
+				}
+				
+				ByteBuffer vector;
+				ByteBuffer whole = null;
+				synchronized (this) {
+					if (anyStale) {
+						whole = entries(true);
+					}
+					vector = entries(false);
+					collectPulls(System.currentTimeMillis(), pullRequests, pullDestinations);
+				}
+				
+				anyStale = false;
+				for (byte destination = 1 ; destination <= hosts.size() ; destination++) {
+					ByteBuffer entries = stale[destination-1] ? whole : vector;
+					if (destination == myId || entries == null) {
+						continue;
+					}
+					stale[destination-1] = pl.isBacklogged(destination);
+					if (stale[destination-1]) {
+						anyStale = true;
+						continue;
+					}
+					pl.sendNonBlocking(SEEN, destination, entries);
+				}
+				if (vector != null) {
+					vectorsSent.increment();
+				}
+				// A pull from a backlogged process is made again later, possibly from another one. 
+				for (int i = 0 ; i < pullRequests.size() ; i++) {
+					if (pl.isBacklogged(pullDestinations.get(i))) {
+						continue;
+					}
+					pl.sendNonBlocking(PULL, pullDestinations.get(i), pullRequests.get(i));
+					pulls.increment();
+				}
+				pullRequests.clear();
+				pullDestinations.clear();
+			}
+		});
+		gossiper.start();
+	}
+	
+	/*
+	 * Entries of the vector of this process that changed since they were last returned, or null if none did. 
+	 * With all set, every entry is returned instead, and the changed ones are returned again by the next call. 
+	 */
+	private ByteBuffer entries(boolean all) {
+		
+		int numOfEntries = 0;
+		for (boolean c : changed) {
+			if (c || all) {
+				numOfEntries++;
+			}
+		}
+		if (numOfEntries == 0) {
+			return null;
+		}
+		
+		ByteBuffer vector = ByteBuffer.allocate(numOfEntries * 5);
+		for (int i = 0 ; i < changed.length ; i++) {
+			if (changed[i] || all) {
+				vector.put((byte)(i + 1)).putInt(seen[myId-1][i]);
+			}
+			if (!all) {
+				changed[i] = false;
 			}
 		}
+		return vector.flip();
+	}
+	
+	/*
+	 * For each source other processes have more messages of than this one, pulls the next ones from one of them 
+	 * picked at random, once they have been missing for cs451.urbPullDelayMs, and again every as long. Until then, 
+	 * they are most likely still on their way from the source. 
+	 */
+	private void collectPulls(long currentTime, List<ByteBuffer> pullRequests, List<Byte> pullDestinations) {
 		
-		if (ack[source-1][msgId-1] > hosts.size()/2 && !delivered[source-1][msgId-1]) {
-			fb.deliver(msgId, source, relay, data);
-			delivered[source-1][msgId-1] = true;
+		int[] own = seen[myId-1];
+		for (int source = 1 ; source <= hosts.size() ; source++) {
+			
+			int numOfAhead = 0;
+			for (int i = 0 ; i < seen.length ; i++) {
+				if (seen[i][source-1] > own[source-1]) {
+					numOfAhead++;
+				}
+			}
+			if (numOfAhead == 0) {
+				missingSince[source-1] = 0;
+				continue;
+			}
+			if (missingSince[source-1] == 0) {
+				missingSince[source-1] = currentTime;
+			}
+			if (currentTime - missingSince[source-1] < Constants.URB_PULL_DELAY_MS
+					|| currentTime - pulledAt[source-1] < Constants.URB_PULL_DELAY_MS) {
+				continue;
+			}
+			
+			int pick = random.nextInt(numOfAhead);
+			for (int i = 0 ; i < seen.length ; i++) {
+				if (seen[i][source-1] > own[source-1] && pick-- == 0) {
+					int to = Math.min(seen[i][source-1], own[source-1] + PULL_BATCH);
+					pullRequests.add(ByteBuffer.allocate(9).put((byte)source).putInt(own[source-1] + 1).putInt(to).flip());
+					pullDestinations.add((byte)(i + 1));
+					break;
+				}
+			}
+			pulledAt[source-1] = currentTime;
 		}
 	}
 	
 	public void stopBroadcast() {
+		
+		stop = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		if (gossiper != null) {
+			gossiper.interrupt();
+			try {
+				gossiper.join();
+			}catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 		pl.stopLinks();
 	}
 	
@@ -0,0 +1,260 @@
+package cs451;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/*
+ * Encoding of the datagrams exchanged by Perfect Links. A datagram starts with a version byte and the id of the 
+ * process that sent it, followed by any number of frames, one per message or ack: 
+ * 
+ *   datagram : version (1 byte) | source (varint) | frame* 
+ *   frame    : flags (1 byte) | [type (1 byte)] | [msgId (varint)] | [watermark (varint) | sack (varlong)] | [length (varint) | data] 
+ * 
+ * The low bits of the flags hold the type of the message, unless it does not fit in them, in which case the type 
+ * follows in a byte of its own. The other bits tell whether the frame carries a message, an ack block, or both. 
+ * The destination is not encoded, it is the process receiving the datagram. Integers are encoded as unsigned 
+ * LEB128 varints, so that the small ids and lengths of most messages take a byte or two. 
+ * 
+ * The version byte has a fixed magic in its high bits, so that a datagram of another format, or from another 
+ * version of the protocol, is rejected as a whole instead of being misread. Frames are checked as they are read: 
+ * a truncated frame, a varint longer than its type allows, a message id below 1, a negative watermark, or data 
+ * running past the end of the datagram make the frame malformed. 
+ */
+public class WireFormat {
+	
+	// Magic in the high nibble, version of the format in the low one. 
+	public static final byte VERSION = (byte) 0xA1;
+	// Returned by getHeader instead of a source, for a datagram of another version, and for a malformed header. 
+	public static final int UNKNOWN_VERSION = -1;
+	public static final int MALFORMED = -2;
+	// Upper bound of the size of a frame without its data: flags, type, message id, ack block and length. 
+	public static final int MAX_FRAME_HEADER_SIZE = 1 + 1 + 5 + 5 + 10 + 5;
+	
+	private static final int TYPE_MASK = 0x0F;
+	// Type stored in the flags when the actual type follows in a byte of its own. 
+	private static final int TYPE_ESCAPE = 0x0F;
+	// The frame carries a message, with its id and data. 
+	private static final int MESSAGE = 0x10;
+	// The frame carries an ack block for the messages its receiver sent to its sender. 
+	private static final int ACK_BLOCK = 0x20;
+	
+	/*
+	 * Starts a datagram sent by the given process, in a cleared buffer. 
+	 */
+	public static void putHeader(ByteBuffer output, int source) {
+		
+		output.put(VERSION);
+		putVarInt(output, source);
+	}
+	
+	/*
+	 * Reads the header of a datagram and returns the id of its source, UNKNOWN_VERSION if the datagram does not 
+	 * have the version of this format, or MALFORMED if its source is truncated, overlong or negative. 
+	 */
+	public static int getHeader(ByteBuffer input) {
+		
+		if (!input.hasRemaining() || input.get() != VERSION) {
+			return UNKNOWN_VERSION;
+		}
+		try {
+			int source = getVarInt(input);
+			return source < 0 ? MALFORMED : source;
+		}catch (BufferUnderflowException | IllegalArgumentException e) {
+			return MALFORMED;
+		}
+	}
+	
+	/*
+	 * Writes a frame carrying a message, and the given ack block if hasAck is set. The data is written from its 
+	 * position to its limit, without moving them, since it may be shared with other messages. 
+	 */
+	public static void putMessage(ByteBuffer output, int msgId, int type, ByteBuffer data, boolean hasAck, int watermark, long sack) {
+		
+		putFlags(output, MESSAGE | (hasAck ? ACK_BLOCK : 0), type);
+		putVarInt(output, msgId);
+		if (hasAck) {
+			putVarInt(output, watermark);
+			putVarLong(output, sack);
+		}
+		if (data == null) {
+			putVarInt(output, 0);
+			return;
+		}
+		putVarInt(output, data.remaining());
+		if (data.hasArray()) {
+			output.put(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}else {
+			output.put(data.duplicate());
+		}
+	}
+	
+	/*
+	 * Writes a frame carrying only an ack block. 
+	 */
+	public static void putAck(ByteBuffer output, int watermark, long sack) {
+		
+		putFlags(output, ACK_BLOCK, 0);
+		putVarInt(output, watermark);
+		putVarLong(output, sack);
+	}
+	
+	/*
+	 * Reads the next frame of a datagram into the given frame, and moves the input past it. The data of the frame 
+	 * is not copied, the frame only records where it is in the input. Returns false if the frame is malformed, in 
+	 * which case the content of the frame and the position of the input are undefined. 
+	 */
+	public static boolean getFrame(ByteBuffer input, Frame frame) {
+		
+		try {
+			int flags = input.get() & 0xFF;
+			int type = flags & TYPE_MASK;
+			if (type == TYPE_ESCAPE) {
+				type = input.get() & 0xFF;
+			}
+			frame.type = type;
+			frame.hasMessage = (flags & MESSAGE) != 0;
+			frame.hasAck = (flags & ACK_BLOCK) != 0;
+			frame.msgId = frame.hasMessage ? getVarInt(input) : 0;
+			if (frame.hasMessage && frame.msgId < 1) {
+				return false;
+			}
+			if (frame.hasAck) {
+				frame.watermark = getVarInt(input);
+				frame.sack = getVarLong(input);
+				if (frame.watermark < 0) {
+					return false;
+				}
+			}
+			if (frame.hasMessage) {
+				frame.length = getVarInt(input);
+				if (frame.length < 0 || frame.length > input.remaining()) {
+					return false;
+				}
+				frame.offset = input.position();
+				input.position(frame.offset + frame.length);
+			}else {
+				frame.length = 0;
+				frame.offset = input.position();
+			}
+			return true;
+		}catch (BufferUnderflowException | IllegalArgumentException e) {
+			return false;
+		}
+	}
+	
+	/*
+	 * Upper bound of the size of a frame carrying the given number of bytes of data. 
+	 */
+	public static int maxFrameSize(int length) {
+		return MAX_FRAME_HEADER_SIZE + length;
+	}
+	
+	private static void putFlags(ByteBuffer output, int flags, int type) {
+		
+		if (type >= 0 && type < TYPE_ESCAPE) {
+			output.put((byte) (flags | type));
+		}else {
+			output.put((byte) (flags | TYPE_ESCAPE));
+			output.put((byte) type);
+		}
+	}
+	
+	public static void putVarInt(ByteBuffer output, int value) {
+		
+		while ((value & ~0x7F) != 0) {
+			output.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.put((byte) value);
+	}
+	
+	/*
+	 * Reads a varint written by putVarInt. Throws a BufferUnderflowException if it is truncated, and an 
+	 * IllegalArgumentException if it is longer than the 5 bytes an int takes. 
+	 */
+	public static int getVarInt(ByteBuffer input) {
+		
+		int value = 0;
+		for (int shift = 0 ; shift < 35 ; shift += 7) {
+			byte b = input.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint longer than 5 bytes");
+	}
+	
+	public static void putVarLong(ByteBuffer output, long value) {
+		
+		while ((value & ~0x7FL) != 0) {
+			output.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.put((byte) value);
+	}
+	
+	/*
+	 * Reads a varint written by putVarLong, with the same checks as getVarInt, for the 10 bytes a long takes. 
+	 */
+	public static long getVarLong(ByteBuffer input) {
+		
+		long value = 0;
+		for (int shift = 0 ; shift < 70 ; shift += 7) {
+			byte b = input.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint longer than 10 bytes");
+	}
+	
+	/*
+	 * A decoded frame, reused from one frame to the next. 
+	 */
+	public static class Frame {
+		
+		private int type;
+		private boolean hasMessage;
+		private int msgId;
+		private boolean hasAck;
+		private int watermark;
+		private long sack;
+		// Position and length of the data in the datagram. 
+		private int offset;
+		private int length;
+		
+		public int getType() {
+			return type;
+		}
+		
+		public boolean hasMessage() {
+			return hasMessage;
+		}
+		
+		public int getMsgId() {
+			return msgId;
+		}
+		
+		public boolean hasAck() {
+			return hasAck;
+		}
+		
+		public int getWatermark() {
+			return watermark;
+		}
+		
+		public long getSack() {
+			return sack;
+		}
+		
+		public int getOffset() {
+			return offset;
+		}
+		
+		public int getLength() {
+			return length;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Runs lattice agreement processes in this JVM on a SimulatedNetwork that loses and reorders datagrams, with one 
+ * process partitioned from the others while they decide most steps. Once the partition heals, every process must 
+ * decide every step, and the decisions must satisfy validity and consistency. 
+ */
+public class LatticeAgreementSimulationTest {
+	
+	private static final int PROCESSES = 5;
+	private static final int PROPOSALS = 100;
+	private static final int VALUES_PER_PROPOSAL = 5;
+	private static final int DISTINCT_VALUES = 20;
+	// The last process is partitioned during this window, in milliseconds since the processes started proposing. 
+	private static final long PARTITION_START_MS = 100;
+	private static final long PARTITION_END_MS = 2000;
+	private static final long TIMEOUT_MS = 60000;
+	
+	@TempDir
+	Path dir;
+	
+	@Test
+	public void everyProcessDecidesEveryStep() throws Exception {
+		
+		List<Host> hosts = new ArrayList<Host>();
+		for (int id = 1 ; id <= PROCESSES ; id++) {
+			Host host = new Host();
+			host.populate(Integer.toString(id), "127.0.0.1", Integer.toString(11000 + id));
+			hosts.add(host);
+		}
+		
+		Random random = new Random(1);
+		List<HashSet<Integer>[]> proposals = new ArrayList<HashSet<Integer>[]>();
+		for (int i = 0 ; i < PROCESSES ; i++) {
+			proposals.add(Main.readProposals(writeConfig(random, i + 1)));
+		}
+		
+		SimulatedNetwork network = new SimulatedNetwork(PROCESSES, 1);
+		network.setLoss(0.1);
+		network.setDelay(1, 1);
+		network.setReorder(0.1, 10);
+		
+		StringWriter[] outputs = new StringWriter[PROCESSES];
+		BufferedWriter[] writers = new BufferedWriter[PROCESSES];
+		LatticeAgreement[] processes = new LatticeAgreement[PROCESSES];
+		for (int i = 0 ; i < PROCESSES ; i++) {
+			outputs[i] = new StringWriter();
+			writers[i] = new BufferedWriter(outputs[i]);
+			processes[i] = new LatticeAgreement(proposals.get(i), hosts, i + 1, writers[i], network);
+		}
+		
+		long start = System.currentTimeMillis();
+		List<List<HashSet<Integer>>> decisions;
+		try {
+			for (LatticeAgreement la : processes) {
+				la.propose(0);
+			}
+			Thread.sleep(PARTITION_START_MS);
+			network.partition(PROCESSES);
+			Thread.sleep(PARTITION_END_MS - PARTITION_START_MS);
+			network.heal();
+			
+			// Writers are synchronized, so they can be flushed while the processes decide. 
+			do {
+				Thread.sleep(50);
+				decisions = new ArrayList<List<HashSet<Integer>>>();
+				for (int i = 0 ; i < PROCESSES ; i++) {
+					writers[i].flush();
+					decisions.add(parse(outputs[i].toString()));
+				}
+			}while (!allDecided(decisions) && System.currentTimeMillis() - start < TIMEOUT_MS);
+		}finally {
+			for (LatticeAgreement la : processes) {
+				la.stopProposing();
+			}
+			network.close();
+		}
+		
+		for (int i = 0 ; i < PROCESSES ; i++) {
+			assertEquals(PROPOSALS, decisions.get(i).size(), "decisions of process " + (i + 1));
+		}
+		for (int step = 0 ; step < PROPOSALS ; step++) {
+			HashSet<Integer> all = new HashSet<Integer>();
+			for (HashSet<Integer>[] p : proposals) {
+				all.addAll(p[step]);
+			}
+			for (int i = 0 ; i < PROCESSES ; i++) {
+				HashSet<Integer> decision = decisions.get(i).get(step);
+				assertTrue(decision.containsAll(proposals.get(i)[step]), "validity of process " + (i + 1) + " at step " + step);
+				assertTrue(all.containsAll(decision), "validity of process " + (i + 1) + " at step " + step);
+				for (int j = i + 1 ; j < PROCESSES ; j++) {
+					HashSet<Integer> other = decisions.get(j).get(step);
+					assertTrue(decision.containsAll(other) || other.containsAll(decision),
+							"consistency of processes " + (i + 1) + " and " + (j + 1) + " at step " + step);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Writes a config of random proposals for the given process, in the format Main reads. 
+	 */
+	private String writeConfig(Random random, int id) throws IOException {
+		
+		File config = dir.resolve(id + ".config").toFile();
+		try (PrintWriter writer = new PrintWriter(new FileWriter(config))) {
+			writer.println(PROPOSALS + " " + VALUES_PER_PROPOSAL + " " + DISTINCT_VALUES);
+			for (int step = 0 ; step < PROPOSALS ; step++) {
+				HashSet<Integer> proposal = new HashSet<Integer>();
+				int size = 1 + random.nextInt(VALUES_PER_PROPOSAL);
+				while (proposal.size() < size) {
+					proposal.add(1 + random.nextInt(DISTINCT_VALUES));
+				}
+				StringBuilder line = new StringBuilder();
+				for (int x : proposal) {
+					line.append(line.length() == 0 ? "" : " ").append(x);
+				}
+				writer.println(line);
+			}
+		}
+		return config.getPath();
+	}
+	
+	private static List<HashSet<Integer>> parse(String output) {
+		
+		List<HashSet<Integer>> decisions = new ArrayList<HashSet<Integer>>();
+		for (String line : output.split("\n")) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			HashSet<Integer> decision = new HashSet<Integer>();
+			for (String x : line.split(" ")) {
+				decision.add(Integer.parseInt(x));
+			}
+			decisions.add(decision);
+		}
+		return decisions;
+	}
+	
+	private static boolean allDecided(List<List<HashSet<Integer>>> decisions) {
+		
+		for (List<HashSet<Integer>> d : decisions) {
+			if (d.size() < PROPOSALS) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
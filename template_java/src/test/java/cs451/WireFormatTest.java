@@ -0,0 +1,222 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Round trips of datagrams through WireFormat, and rejection of malformed ones. 
+ */
+public class WireFormatTest {
+	
+	private static final int[] INTS = { 0, 1, 127, 128, 16383, 16384, (1 << 28) - 1, 1 << 28, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+	private static final long[] LONGS = { 0, 127, 128, 1L << 28, 1L << 35, 1L << 63, Long.MAX_VALUE, -1 };
+	
+	@Test
+	public void varIntRoundTrip() {
+		
+		for (int value : INTS) {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			WireFormat.putVarInt(buffer, value);
+			buffer.flip();
+			assertEquals(value, WireFormat.getVarInt(buffer));
+			assertFalse(buffer.hasRemaining());
+		}
+	}
+	
+	@Test
+	public void varIntSizes() {
+		
+		assertEquals(1, varIntSize(127));
+		assertEquals(2, varIntSize(128));
+		assertEquals(4, varIntSize((1 << 28) - 1));
+		assertEquals(5, varIntSize(1 << 28));
+		// Negative ints take the 5 bytes of their unsigned value. 
+		assertEquals(5, varIntSize(-1));
+	}
+	
+	@Test
+	public void varLongRoundTrip() {
+		
+		for (long value : LONGS) {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			WireFormat.putVarLong(buffer, value);
+			buffer.flip();
+			assertEquals(value, WireFormat.getVarLong(buffer));
+			assertFalse(buffer.hasRemaining());
+		}
+	}
+	
+	@Test
+	public void malformedVarInts() {
+		
+		ByteBuffer truncated = ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x80 });
+		assertThrows(BufferUnderflowException.class, () -> WireFormat.getVarInt(truncated));
+		ByteBuffer overlong = ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0 });
+		assertThrows(IllegalArgumentException.class, () -> WireFormat.getVarInt(overlong));
+		ByteBuffer overlongLong = ByteBuffer.allocate(11);
+		for (int i = 0 ; i < 10 ; i++) {
+			overlongLong.put((byte) 0x80);
+		}
+		overlongLong.put((byte) 0).flip();
+		assertThrows(IllegalArgumentException.class, () -> WireFormat.getVarLong(overlongLong));
+	}
+	
+	@Test
+	public void header() {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		WireFormat.putHeader(buffer, 200);
+		buffer.flip();
+		assertEquals(200, WireFormat.getHeader(buffer));
+	}
+	
+	@Test
+	public void versionMismatch() {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.put((byte) (WireFormat.VERSION + 1));
+		WireFormat.putVarInt(buffer, 1);
+		buffer.flip();
+		assertEquals(WireFormat.UNKNOWN_VERSION, WireFormat.getHeader(buffer));
+		assertEquals(WireFormat.UNKNOWN_VERSION, WireFormat.getHeader(ByteBuffer.allocate(0)));
+	}
+	
+	@Test
+	public void malformedHeaders() {
+		
+		assertEquals(WireFormat.MALFORMED, WireFormat.getHeader(ByteBuffer.wrap(new byte[] { WireFormat.VERSION })));
+		assertEquals(WireFormat.MALFORMED, WireFormat.getHeader(ByteBuffer.wrap(new byte[] { WireFormat.VERSION, (byte) 0x80 })));
+		ByteBuffer negative = ByteBuffer.allocate(16);
+		WireFormat.putHeader(negative, -3);
+		assertEquals(WireFormat.MALFORMED, WireFormat.getHeader(negative.flip()));
+	}
+	
+	@Test
+	public void messageFrames() {
+		
+		int[] types = { 0, 1, 14, 15, 16, 200, 255 };
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		WireFormat.putHeader(buffer, 3);
+		for (int type : types) {
+			WireFormat.putMessage(buffer, 128 + type, type, data(type), false, 0, 0);
+		}
+		buffer.flip();
+		
+		assertEquals(3, WireFormat.getHeader(buffer));
+		WireFormat.Frame frame = new WireFormat.Frame();
+		for (int type : types) {
+			assertTrue(WireFormat.getFrame(buffer, frame));
+			assertTrue(frame.hasMessage());
+			assertFalse(frame.hasAck());
+			assertEquals(type, frame.getType());
+			assertEquals(128 + type, frame.getMsgId());
+			assertArrayEquals(data(type).array(), bytes(buffer, frame));
+		}
+		assertFalse(buffer.hasRemaining());
+	}
+	
+	@Test
+	public void emptyData() {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		WireFormat.putMessage(buffer, 1, 2, null, false, 0, 0);
+		WireFormat.putMessage(buffer, 2, 2, ByteBuffer.allocate(0), false, 0, 0);
+		buffer.flip();
+		
+		WireFormat.Frame frame = new WireFormat.Frame();
+		for (int msgId = 1 ; msgId <= 2 ; msgId++) {
+			assertTrue(WireFormat.getFrame(buffer, frame));
+			assertEquals(msgId, frame.getMsgId());
+			assertEquals(0, frame.getLength());
+		}
+		assertFalse(buffer.hasRemaining());
+	}
+	
+	@Test
+	public void ackFrames() {
+		
+		long sack = 0x8000_0000_0000_0005L;
+		ByteBuffer buffer = ByteBuffer.allocate(128);
+		WireFormat.putAck(buffer, 1 << 28, sack);
+		WireFormat.putMessage(buffer, 7, 20, data(3), true, 127, -1L);
+		buffer.flip();
+		
+		WireFormat.Frame frame = new WireFormat.Frame();
+		assertTrue(WireFormat.getFrame(buffer, frame));
+		assertFalse(frame.hasMessage());
+		assertTrue(frame.hasAck());
+		assertEquals(1 << 28, frame.getWatermark());
+		assertEquals(sack, frame.getSack());
+		
+		assertTrue(WireFormat.getFrame(buffer, frame));
+		assertTrue(frame.hasMessage());
+		assertTrue(frame.hasAck());
+		assertEquals(20, frame.getType());
+		assertEquals(7, frame.getMsgId());
+		assertEquals(127, frame.getWatermark());
+		assertEquals(-1L, frame.getSack());
+		assertArrayEquals(data(3).array(), bytes(buffer, frame));
+		assertFalse(buffer.hasRemaining());
+	}
+	
+	@Test
+	public void malformedFrames() {
+		
+		WireFormat.Frame frame = new WireFormat.Frame();
+		
+		// Data running past the end of the datagram. 
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		WireFormat.putMessage(buffer, 1, 2, data(10), false, 0, 0);
+		buffer.flip().limit(buffer.limit() - 1);
+		assertFalse(WireFormat.getFrame(buffer, frame));
+		
+		// Truncated in the middle of the message id. 
+		buffer = ByteBuffer.allocate(64);
+		WireFormat.putMessage(buffer, 1 << 20, 2, null, false, 0, 0);
+		buffer.flip().limit(2);
+		assertFalse(WireFormat.getFrame(buffer, frame));
+		
+		// Message ids start at 1. 
+		buffer = ByteBuffer.allocate(64);
+		WireFormat.putMessage(buffer, 0, 2, null, false, 0, 0);
+		assertFalse(WireFormat.getFrame(buffer.flip(), frame));
+		
+		buffer = ByteBuffer.allocate(64);
+		WireFormat.putAck(buffer, -1, 0);
+		assertFalse(WireFormat.getFrame(buffer.flip(), frame));
+		
+		// An escaped type with no byte after it. 
+		assertFalse(WireFormat.getFrame(ByteBuffer.wrap(new byte[] { 0x1F }), frame));
+	}
+	
+	private static int varIntSize(int value) {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		WireFormat.putVarInt(buffer, value);
+		return buffer.position();
+	}
+	
+	private static ByteBuffer data(int length) {
+		
+		byte[] data = new byte[length];
+		for (int i = 0 ; i < length ; i++) {
+			data[i] = (byte) (length + i);
+		}
+		return ByteBuffer.wrap(data);
+	}
+	
+	private static byte[] bytes(ByteBuffer buffer, WireFormat.Frame frame) {
+		
+		byte[] data = new byte[frame.getLength()];
+		buffer.duplicate().position(frame.getOffset()).get(data);
+		return data;
+	}
+}
@@ -0,0 +1,367 @@
+#!/usr/bin/env python3
+
+import argparse
+import json
+import os
+import signal
+import subprocess
+import sys
+import time
+
+from stress import LatticeAgreementValidation, Validation, positive_int, startProcesses
+from validate_fifo import checkProcess
+
+# Processes wait this long after starting before they make their first proposal or broadcast.
+STARTUP_DELAY = 3
+# Time given to the processes to stop and write their output once terminated, before they are killed.
+SHUTDOWN_TIMEOUT = 10
+
+
+def readStats(path):
+    """Reads the key=value statistics a process writes next to its output when it terminates."""
+    if not os.path.exists(path):
+        return None
+
+    stats = dict()
+    with open(path) as f:
+        for line in f:
+            key, _, value = line.strip().partition("=")
+            if key:
+                stats[key] = int(value)
+    return stats
+
+
+def stopProcesses(procs):
+    for _, handle in procs:
+        handle.send_signal(signal.SIGTERM)
+
+    deadline = time.time() + SHUTDOWN_TIMEOUT
+    for logicalPID, handle in procs:
+        try:
+            handle.wait(timeout=max(deadline - time.time(), 0))
+        except subprocess.TimeoutExpired:
+            print("Process {} did not stop in time, killing it".format(logicalPID))
+            handle.kill()
+            handle.wait()
+
+
+def runProcesses(runscript, runDir, processes, hostsFile, configFiles, duration):
+    """Runs the processes for the given seconds after their first proposal or broadcast, then stops them."""
+    procs = startProcesses(processes, runscript, hostsFile, configFiles, runDir)
+    try:
+        time.sleep(STARTUP_DELAY + duration)
+        stopProcesses(procs)
+    finally:
+        for _, handle in procs:
+            handle.kill()
+
+    return procs
+
+
+def summarize(perProcess):
+    reported = [p for p in perProcess if "decisions" in p]
+    if not reported:
+        return dict()
+
+    rates = [p["decisionsPerSecond"] for p in reported]
+    medians = sorted(p["latencyP50Us"] for p in reported)
+    decisions = sum(p["decisions"] for p in reported)
+    bytesSent = sum(p["bytesSent"] for p in reported)
+
+    return {
+        "processesReporting": len(reported),
+        "decisionsPerSecondMin": min(rates),
+        "decisionsPerSecondMean": round(sum(rates) / len(rates), 1),
+        "decisionsPerSecondMax": max(rates),
+        "latencyP50UsMedian": medians[len(medians) // 2],
+        "latencyP99UsMax": max(p["latencyP99Us"] for p in reported),
+        "latencyMaxUs": max(p["latencyMaxUs"] for p in reported),
+        "datagramsSent": sum(p["datagramsSent"] for p in reported),
+        "bytesSent": bytesSent,
+        "bytesSentPerDecision": round(bytesSent / decisions, 1) if decisions else None,
+    }
+
+
+def runAgreement(runscript, logsDir, processes, proposals, pmv, pdv, duration):
+    runDir = os.path.join(logsDir, "agreement-p{}-v{}".format(processes, pmv))
+    os.makedirs(runDir, exist_ok=True)
+
+    validation = LatticeAgreementValidation(processes, proposals, pmv, pdv)
+    hostsFile, configFiles = validation.generate(runDir)
+
+    print(
+        "Running {} processes, {} proposals of up to {} values, for {}s".format(
+            processes, proposals, pmv, duration
+        )
+    )
+    procs = runProcesses(runscript, runDir, processes, hostsFile, configFiles, duration)
+
+    perProcess = []
+    for logicalPID, _ in procs:
+        stats = readStats(
+            os.path.join(runDir, "proc{:02d}.output.stats".format(logicalPID))
+        )
+        if stats is None:
+            print(
+                "No statistics from process {}, it was stopped before its first proposal".format(
+                    logicalPID
+                )
+            )
+            perProcess.append({"id": logicalPID})
+            continue
+
+        seconds = max(stats["durationMs"], 1) / 1000.0
+        perProcess.append(
+            {
+                "id": logicalPID,
+                "decisions": stats["decisions"],
+                "decisionsPerSecond": round(stats["decisions"] / seconds, 1),
+                "latencyP50Us": stats["latencyP50Us"],
+                "latencyP90Us": stats["latencyP90Us"],
+                "latencyP99Us": stats["latencyP99Us"],
+                "latencyMaxUs": stats["latencyMaxUs"],
+                "datagramsSent": stats["datagramsSent"],
+                "bytesSent": stats["bytesSent"],
+            }
+        )
+
+    return {
+        "command": "agreement",
+        "processes": processes,
+        "proposals": proposals,
+        "proposalMaxValues": pmv,
+        "distinctValues": pdv,
+        "seconds": duration,
+        "summary": summarize(perProcess),
+        "perProcess": perProcess,
+    }
+
+
+def summarizeFifo(perProcess):
+    reported = [p for p in perProcess if "deliveries" in p]
+    if not reported:
+        return dict()
+
+    rates = [p["deliveriesPerSecond"] for p in reported]
+    deliveries = sum(p["deliveries"] for p in reported)
+    bytesSent = sum(p["bytesSent"] for p in reported)
+
+    return {
+        "processesReporting": len(reported),
+        "processesValid": sum(1 for p in perProcess if p["valid"]),
+        "deliveriesPerSecondMin": min(rates),
+        "deliveriesPerSecondMean": round(sum(rates) / len(rates), 1),
+        "deliveriesPerSecondMax": max(rates),
+        "datagramsSent": sum(p["datagramsSent"] for p in reported),
+        "bytesSent": bytesSent,
+        "bytesSentPerDelivery": round(bytesSent / deliveries, 1) if deliveries else None,
+    }
+
+
+def countEvents(path):
+    """Counts the broadcasts and deliveries in the output of a fifo process."""
+    broadcasts, deliveries = 0, 0
+    with open(path) as f:
+        for line in f:
+            if line.startswith("b"):
+                broadcasts += 1
+            elif line.startswith("d"):
+                deliveries += 1
+    return broadcasts, deliveries
+
+
+def runFifo(runscript, logsDir, processes, messages, duration):
+    runDir = os.path.join(logsDir, "fifo-p{}-m{}".format(processes, messages))
+    os.makedirs(runDir, exist_ok=True)
+
+    validation = Validation(processes, messages)
+    hostsFile, configFile = validation.generateFifoConfig(runDir)
+
+    print(
+        "Running {} processes, broadcasting {} messages each, for {}s".format(
+            processes, messages, duration
+        )
+    )
+    procs = runProcesses(runscript, runDir, processes, hostsFile, [configFile], duration)
+
+    perProcess = []
+    for logicalPID, _ in procs:
+        output = os.path.join(runDir, "proc{:02d}.output".format(logicalPID))
+        valid = checkProcess(output)
+        stats = readStats(output + ".stats")
+        if stats is None:
+            print(
+                "No statistics from process {}, it was stopped before its first broadcast".format(
+                    logicalPID
+                )
+            )
+            perProcess.append({"id": logicalPID, "valid": valid})
+            continue
+
+        broadcasts, deliveries = countEvents(output)
+        seconds = max(stats["durationMs"], 1) / 1000.0
+        perProcess.append(
+            {
+                "id": logicalPID,
+                "valid": valid,
+                "broadcasts": broadcasts,
+                "deliveries": deliveries,
+                "deliveriesPerSecond": round(deliveries / seconds, 1),
+                "datagramsSent": stats["datagramsSent"],
+                "bytesSent": stats["bytesSent"],
+            }
+        )
+
+    return {
+        "command": "fifo",
+        "processes": processes,
+        "messages": messages,
+        "seconds": duration,
+        "summary": summarizeFifo(perProcess),
+        "perProcess": perProcess,
+    }
+
+
+def main(parser_results):
+    logsDir = parser_results.logsDir
+    if not os.path.isdir(logsDir):
+        raise ValueError("Directory `{}` does not exist".format(logsDir))
+
+    runs = []
+    if parser_results.command == "fifo":
+        for processes in parser_results.processes:
+            run = runFifo(
+                parser_results.runscript,
+                logsDir,
+                processes,
+                parser_results.messages,
+                parser_results.duration,
+            )
+            print(json.dumps(run["summary"]))
+            runs.append(run)
+    else:
+        pdv = parser_results.proposals_distinct_values
+        if max(parser_results.proposal_max_values) > pdv:
+            print(
+                "The distinct proposal values must at least as many as the maximum values per proposal"
+            )
+            sys.exit(1)
+
+        for processes in parser_results.processes:
+            for pmv in parser_results.proposal_max_values:
+                run = runAgreement(
+                    parser_results.runscript,
+                    logsDir,
+                    processes,
+                    parser_results.proposals,
+                    pmv,
+                    pdv,
+                    parser_results.duration,
+                )
+                print(json.dumps(run["summary"]))
+                runs.append(run)
+
+    report = json.dumps({"runs": runs}, indent=2)
+    if parser_results.report is None:
+        print(report)
+    else:
+        with open(parser_results.report, "w") as f:
+            f.write(report)
+            f.write("\n")
+
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(
+        description="Runs local processes for a fixed time, and reports their throughput, decision latency and traffic as JSON. "
+        "Every number of processes, combined with every proposal size for lattice agreement, is a separate run. "
+        "Fifo outputs are also checked for broadcasts and deliveries out of order."
+    )
+
+    sub_parsers = parser.add_subparsers(dest="command", help="benchmark a given milestone")
+    sub_parsers.required = True
+    parser_fifo = sub_parsers.add_parser("fifo", help="benchmark fifo broadcast")
+    parser_agreement = sub_parsers.add_parser(
+        "agreement", help="benchmark lattice agreement"
+    )
+
+    for subparser in [parser_fifo, parser_agreement]:
+        subparser.add_argument(
+            "-r",
+            "--runscript",
+            required=True,
+            dest="runscript",
+            help="Path to run.sh",
+        )
+
+        subparser.add_argument(
+            "-l",
+            "--logs",
+            required=True,
+            dest="logsDir",
+            help="Directory to store the configs, outputs and statistics of every run",
+        )
+
+        subparser.add_argument(
+            "-p",
+            "--processes",
+            required=True,
+            nargs="+",
+            type=positive_int,
+            dest="processes",
+            help="Numbers of processes to run",
+        )
+
+        subparser.add_argument(
+            "-t",
+            "--time",
+            default=10,
+            type=positive_int,
+            dest="duration",
+            help="Seconds each run lasts after the first proposal or broadcast",
+        )
+
+        subparser.add_argument(
+            "-o",
+            "--report",
+            dest="report",
+            help="File to write the JSON report to, instead of the standard output",
+        )
+
+    parser_fifo.add_argument(
+        "-m",
+        "--messages",
+        required=True,
+        type=positive_int,
+        dest="messages",
+        help="Number of messages in the config, that each process broadcasts",
+    )
+
+    parser_agreement.add_argument(
+        "-n",
+        "--proposals",
+        required=True,
+        type=positive_int,
+        dest="proposals",
+        help="Number of proposals in the config of each process",
+    )
+
+    parser_agreement.add_argument(
+        "-v",
+        "--proposal-values",
+        required=True,
+        nargs="+",
+        type=positive_int,
+        dest="proposal_max_values",
+        help="Maximum sizes of the proposal sets to run with",
+    )
+
+    parser_agreement.add_argument(
+        "-d",
+        "--distinct-values",
+        required=True,
+        type=positive_int,
+        dest="proposals_distinct_values",
+        help="The number of distinct values among all proposals",
+    )
+
+    main(parser.parse_args())